@@ -0,0 +1,375 @@
+package x86;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import temp.Label;
+import tree.*;
+import util.List;
+
+/**
+ * Basic block layout of a method body, before instruction selection.
+ *     The body is cut into basic blocks (a LABEL starts one, a JUMP or CJUMP
+ * ends one). Jumps to a block that only jumps elsewhere go straight to the
+ * final target, blocks that can't be reached are dropped, and the others
+ * are laid out in traces (Appel, 8.2): each block is followed, when
+ * possible, by the false target of its CJUMP or the target of its JUMP.
+ * Then:
+ *     - a JUMP to the label that follows is deleted;
+ *     - a CJUMP whose true label follows gets the negated condition, so the
+ *       false label always follows when either of them can;
+ *     - labels nothing refers to any more are deleted.
+ */
+public class BlockLayout {
+
+    private ArrayList<ArrayList<Stm>> blocks;
+    private Map<Label, Integer> blockOf;
+
+    // Label appended after the body when the last block falls off the end,
+    // and that block (which is laid out last):
+    private Label exit;
+    private int exitBlock;
+
+    public List<Stm> optimize(List<Stm> body) {
+        ArrayList<Stm> stms = new ArrayList<Stm>();
+        boolean jumps = false;
+        for (List<Stm> l = body; l != null; l = l.tail) {
+            flatten(l.head, stms);
+        }
+        for (Stm s : stms) {
+            jumps |= (s instanceof JUMP || s instanceof CJUMP);
+        }
+        // Straight-line code, nothing to lay out:
+        if (!jumps) {
+            return body;
+        }
+
+        split(stms);
+        collapseJumpChains();
+        boolean[] reachable = reachable(stms);
+        ArrayList<Integer> order = traces(reachable);
+        return emit(order);
+    }
+
+    private static void flatten(Stm s, ArrayList<Stm> stms) {
+        if (s instanceof SEQ) {
+            flatten(((SEQ)s).getLeft(), stms);
+            flatten(((SEQ)s).getRight(), stms);
+        } else {
+            stms.add(s);
+        }
+    }
+
+    /**
+     * Cuts the statements into blocks. Every block but the first starts with
+     * its LABEL and every block ends with a JUMP or a CJUMP (one is added
+     * where a block falls into the next one); code after a jump that has no
+     * label can't run and is dropped.
+     */
+    private void split(ArrayList<Stm> stms) {
+        blocks = new ArrayList<ArrayList<Stm>>();
+        blockOf = new HashMap<Label, Integer>();
+
+        ArrayList<Stm> current = new ArrayList<Stm>();
+        boolean dead = false;
+        for (Stm s : stms) {
+            if (s instanceof LABEL) {
+                Label l = ((LABEL)s).getLabel();
+                if (!current.isEmpty() && !dead) {
+                    current.add(new JUMP(l));
+                    blocks.add(current);
+                }
+                current = new ArrayList<Stm>();
+                current.add(s);
+                blockOf.put(l, blocks.size());
+                dead = false;
+            } else if (!dead) {
+                current.add(s);
+                if (s instanceof JUMP || s instanceof CJUMP) {
+                    blocks.add(current);
+                    current = new ArrayList<Stm>();
+                    dead = true;
+                }
+            }
+        }
+
+        // The last block falls off the end of the body:
+        exit = null;
+        exitBlock = -1;
+        if (!dead && !current.isEmpty()) {
+            exit = new Label();
+            current.add(new JUMP(exit));
+            exitBlock = blocks.size();
+            blocks.add(current);
+        }
+    }
+
+    /**
+     * Final target of a jump to l, skipping blocks made of a single
+     * "l: JUMP(NAME l2)".
+     */
+    private Label forward(Label l) {
+        Set<Label> seen = new HashSet<Label>();
+        while (seen.add(l)) {
+            Integer b = blockOf.get(l);
+            if (b == null || blocks.get(b).size() != 2) {
+                break;
+            }
+            Stm s = blocks.get(b).get(1);
+            if (!(s instanceof JUMP) ||
+                !(((JUMP)s).getExpression() instanceof NAME)) {
+                break;
+            }
+            l = ((NAME)((JUMP)s).getExpression()).getLabel();
+        }
+        return l;
+    }
+
+    private void collapseJumpChains() {
+        for (ArrayList<Stm> block : blocks) {
+            int last = block.size() - 1;
+            Stm s = block.get(last);
+            if (s instanceof JUMP && ((JUMP)s).getExpression() instanceof NAME) {
+                Label l = ((NAME)((JUMP)s).getExpression()).getLabel();
+                block.set(last, new JUMP(forward(l)));
+            } else if (s instanceof CJUMP) {
+                CJUMP c = (CJUMP)s;
+                block.set(last, new CJUMP(
+                    c.getOperation(),
+                    c.getLeft(),
+                    c.getRight(),
+                    forward(c.getLabelTrue()),
+                    forward(c.getLabelFalse())
+                ));
+            }
+        }
+    }
+
+    /**
+     * Blocks reachable from the first one, or from a label that is taken as
+     * a value (NAME) somewhere in the body.
+     */
+    private boolean[] reachable(ArrayList<Stm> stms) {
+        boolean[] reachable = new boolean[blocks.size()];
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        stack.add(0);
+
+        Set<Label> names = new HashSet<Label>();
+        for (Stm s : stms) {
+            if (!(s instanceof JUMP)) {
+                names(s, names);
+            }
+        }
+        for (Label l : names) {
+            if (blockOf.containsKey(l)) {
+                stack.add(blockOf.get(l));
+            }
+        }
+
+        while (!stack.isEmpty()) {
+            int b = stack.remove(stack.size() - 1);
+            if (reachable[b]) continue;
+            reachable[b] = true;
+            for (Label l : targets(b)) {
+                Integer t = blockOf.get(l);
+                if (t != null && !reachable[t]) {
+                    stack.add(t);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Lays the reachable blocks out in traces, starting with the first
+     * block and then in their original order. The block that falls off the
+     * end of the body is kept for last, so that it still falls off.
+     */
+    private ArrayList<Integer> traces(boolean[] reachable) {
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        boolean[] marked = new boolean[blocks.size()];
+        for (int start = 0; start < blocks.size(); start++) {
+            int b = start;
+            if (b == exitBlock && b != 0) {
+                continue;
+            }
+            while (reachable[b] && !marked[b]) {
+                marked[b] = true;
+                order.add(b);
+
+                // Prefer the false target, then the true one:
+                Stm s = last(b);
+                Integer next = null;
+                if (s instanceof CJUMP) {
+                    next = blockOf.get(((CJUMP)s).getLabelFalse());
+                    if (!available(next, marked)) {
+                        next = blockOf.get(((CJUMP)s).getLabelTrue());
+                    }
+                } else if (((JUMP)s).getExpression() instanceof NAME) {
+                    next = blockOf.get(((NAME)((JUMP)s).getExpression()).getLabel());
+                }
+                if (!available(next, marked)) {
+                    break;
+                }
+                b = next;
+            }
+        }
+        if (exitBlock > 0 && reachable[exitBlock]) {
+            order.add(exitBlock);
+        }
+        return order;
+    }
+
+    private boolean available(Integer b, boolean[] marked) {
+        return b != null && !marked[b] && b != exitBlock;
+    }
+
+    private List<Stm> emit(ArrayList<Integer> order) {
+        ArrayList<Stm> result = new ArrayList<Stm>();
+        for (int k = 0; k < order.size(); k++) {
+            ArrayList<Stm> block = blocks.get(order.get(k));
+            Label next = exit;
+            if (k + 1 < order.size()) {
+                next = label(order.get(k + 1));
+            }
+
+            for (int i = 0; i < block.size() - 1; i++) {
+                result.add(block.get(i));
+            }
+
+            Stm s = block.get(block.size() - 1);
+            if (s instanceof JUMP && ((JUMP)s).getExpression() instanceof NAME &&
+                ((NAME)((JUMP)s).getExpression()).getLabel() == next) {
+                // JUMP to the next block:
+                continue;
+            }
+            if (s instanceof CJUMP && ((CJUMP)s).getLabelTrue() == next) {
+                CJUMP c = (CJUMP)s;
+                s = new CJUMP(
+                    negate(c.getOperation()),
+                    c.getLeft(),
+                    c.getRight(),
+                    c.getLabelFalse(),
+                    c.getLabelTrue()
+                );
+            }
+            result.add(s);
+        }
+        if (exit != null) {
+            result.add(new LABEL(exit));
+        }
+
+        // Labels that are still referred to (the first statement is kept, it
+        // may be the entry point):
+        Set<Label> used = new HashSet<Label>();
+        for (Stm s : result) {
+            names(s, used);
+            if (s instanceof JUMP) {
+                for (List<Label> l = ((JUMP)s).getTargets(); l != null; l = l.tail) {
+                    used.add(l.head);
+                }
+            } else if (s instanceof CJUMP) {
+                used.add(((CJUMP)s).getLabelTrue());
+                used.add(((CJUMP)s).getLabelFalse());
+            }
+        }
+
+        List<Stm> l = null;
+        for (int i = result.size() - 1; i >= 0; i--) {
+            Stm s = result.get(i);
+            if (i > 0 && s instanceof LABEL && !used.contains(((LABEL)s).getLabel())) {
+                continue;
+            }
+            l = new List<Stm>(s, l);
+        }
+        return l;
+    }
+
+    private Stm last(int b) {
+        ArrayList<Stm> block = blocks.get(b);
+        return block.get(block.size() - 1);
+    }
+
+    private Label label(int b) {
+        Stm s = blocks.get(b).get(0);
+        return (s instanceof LABEL) ? ((LABEL)s).getLabel() : null;
+    }
+
+    private ArrayList<Label> targets(int b) {
+        ArrayList<Label> a = new ArrayList<Label>();
+        Stm s = last(b);
+        if (s instanceof CJUMP) {
+            a.add(((CJUMP)s).getLabelTrue());
+            a.add(((CJUMP)s).getLabelFalse());
+        } else {
+            for (List<Label> l = ((JUMP)s).getTargets(); l != null; l = l.tail) {
+                a.add(l.head);
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Adds the labels used as values (NAME) in s to names.
+     */
+    private static void names(Stm s, Set<Label> names) {
+        if (s instanceof MOVE) {
+            names(((MOVE)s).getDestination(), names);
+            names(((MOVE)s).getSource(), names);
+        } else if (s instanceof EXPSTM) {
+            names(((EXPSTM)s).getExpression(), names);
+        } else if (s instanceof CJUMP) {
+            names(((CJUMP)s).getLeft(), names);
+            names(((CJUMP)s).getRight(), names);
+        } else if (s instanceof JUMP) {
+            names(((JUMP)s).getExpression(), names);
+        } else if (s instanceof SEQ) {
+            names(((SEQ)s).getLeft(), names);
+            names(((SEQ)s).getRight(), names);
+        }
+    }
+
+    private static void names(Exp e, Set<Label> names) {
+        if (e instanceof NAME) {
+            names.add(((NAME)e).getLabel());
+        } else if (e instanceof BINOP) {
+            names(((BINOP)e).getLeft(), names);
+            names(((BINOP)e).getRight(), names);
+        } else if (e instanceof MEM) {
+            names(((MEM)e).getExpression(), names);
+        } else if (e instanceof CALL) {
+            names(((CALL)e).getCallable(), names);
+            for (List<Exp> l = ((CALL)e).getArguments(); l != null; l = l.tail) {
+                names(l.head, names);
+            }
+        } else if (e instanceof ESEQ) {
+            names(((ESEQ)e).getStatement(), names);
+            names(((ESEQ)e).getExpression(), names);
+        }
+    }
+
+    /**
+     * Returns the relational operator of the opposite condition.
+     *
+     * @param op
+     * @return
+     */
+    public static int negate(int op) {
+        switch (op) {
+            case CJUMP.EQ:  return CJUMP.NE;
+            case CJUMP.NE:  return CJUMP.EQ;
+            case CJUMP.LT:  return CJUMP.GE;
+            case CJUMP.GE:  return CJUMP.LT;
+            case CJUMP.GT:  return CJUMP.LE;
+            case CJUMP.LE:  return CJUMP.GT;
+            case CJUMP.ULT: return CJUMP.UGE;
+            case CJUMP.UGE: return CJUMP.ULT;
+            case CJUMP.UGT: return CJUMP.ULE;
+            case CJUMP.ULE: return CJUMP.UGT;
+        }
+        throw new IllegalArgumentException("Unknown CJUMP operator " + op);
+    }
+}
@@ -0,0 +1,335 @@
+package x86;
+
+import java.util.ArrayList;
+
+import tree.*;
+import util.List;
+
+/**
+ * Bottom-up rewrite system (BURS) instruction selection, in the style of
+ * iburg (Fraser, Hanson and Proebsting, "Engineering a Simple, Efficient
+ * Code Generator Generator", 1992).
+ *     The rules are a table (see Rules): a nonterminal, a tree pattern whose
+ * leaves may be nonterminals, a cost and the instructions to emit. Each IR
+ * node is labeled once, bottom-up, with the cheapest rule deriving each
+ * nonterminal from it (dynamic programming, chain rules "A <- B" included);
+ * then the tree is reduced top-down from the goal nonterminal, emitting
+ * the instructions of the chosen rules. The cover found is the cheapest
+ * one for the costs in the table, and both passes are linear in the size
+ * of the tree.
+ */
+class Burs {
+
+    // Nonterminals:
+    static final int STM = 0;       // statement
+    static final int REG = 1;       // value in a temporary
+    static final int IMM = 2;       // constant
+    static final int MEM = 3;       // memory operand
+    static final int ADDR = 4;      // address [base + index*scale + disp]
+    static final int INDEX = 5;     // scaled index [index*scale]
+    static final int CALLEE = 6;    // operand of a call
+    static final int ARGS = 7;      // pushed arguments
+    static final int NONTERMINALS = 8;
+
+    // Operators (the BINOP operators are 0 to 9):
+    static final int TEMP_ = 10;
+    static final int CONST_ = 11;
+    static final int NAME_ = 12;
+    static final int MEM_ = 13;
+    static final int CALL_ = 14;
+    static final int ESEQ_ = 15;
+    static final int MOVE_ = 16;
+    static final int EXPSTM_ = 17;
+    static final int JUMP_ = 18;
+    static final int CJUMP_ = 19;
+    static final int LABEL_ = 20;
+    static final int SEQ_ = 21;
+    static final int ARGLIST_ = 22;     // ARGLIST(arg, rest) for the arguments of a CALL
+    static final int NOARGS_ = 23;
+    static final int OPERATORS = 24;
+
+    static final int INFINITE = Integer.MAX_VALUE / 2;
+
+    /**
+     * A tree pattern: an operator with sub-patterns, or a nonterminal leaf.
+     */
+    static class Pattern {
+        final int op;
+        final int nt;
+        final Pattern[] kids;
+
+        private Pattern(int op, int nt, Pattern[] kids) {
+            this.op = op;
+            this.nt = nt;
+            this.kids = kids;
+        }
+
+        boolean isNonterminal() {
+            return nt >= 0;
+        }
+    }
+
+    static Pattern op(int op, Pattern... kids) {
+        return new Pattern(op, -1, kids);
+    }
+
+    static Pattern nt(int nt) {
+        return new Pattern(-1, nt, new Pattern[0]);
+    }
+
+    /**
+     * A rule "lhs <- pattern". cost(n) may depend on the node (and reject it
+     * with INFINITE); emit gets the values of the nonterminal leaves of the
+     * pattern, left to right, and returns the value of lhs.
+     */
+    abstract static class Rule {
+        final int lhs;
+        final Pattern pattern;
+        final int cost;
+
+        Rule(int lhs, Pattern pattern, int cost) {
+            this.lhs = lhs;
+            this.pattern = pattern;
+            this.cost = cost;
+        }
+
+        int cost(Node n) {
+            return cost;
+        }
+
+        /**
+         * Whether the nonterminal leaves are reduced right to left.
+         */
+        boolean rightToLeft() {
+            return false;
+        }
+
+        boolean isChain() {
+            return pattern.isNonterminal();
+        }
+
+        abstract Object emit(Codegen g, Node n, Object[] kids);
+    }
+
+    /**
+     * An IR node with its labels: the cost and rule of each nonterminal.
+     */
+    static class Node {
+        final Object tree;
+        final int op;
+        final Node[] kids;
+        final int[] cost;
+        final Rule[] rule;
+
+        Node(Object tree, int op, Node... kids) {
+            this.tree = tree;
+            this.op = op;
+            this.kids = kids;
+            this.cost = new int[NONTERMINALS];
+            this.rule = new Rule[NONTERMINALS];
+        }
+
+        long value() {
+            return ((CONST)tree).getValue();
+        }
+    }
+
+    private final Codegen g;
+
+    // Rules by the operator at the root of their pattern, and chain rules:
+    private final ArrayList<ArrayList<Rule>> byOp;
+    private final ArrayList<Rule> chains;
+
+    Burs(Codegen g, Rule[] table) {
+        this.g = g;
+        byOp = new ArrayList<ArrayList<Rule>>();
+        for (int op = 0; op < OPERATORS; op++) {
+            byOp.add(new ArrayList<Rule>());
+        }
+        chains = new ArrayList<Rule>();
+        for (Rule r : table) {
+            if (r.isChain()) {
+                chains.add(r);
+            } else {
+                byOp.get(r.pattern.op).add(r);
+            }
+        }
+    }
+
+    /**
+     * Selects the instructions of a statement.
+     *
+     * @param s
+     */
+    void select(Stm s) {
+        Node n = build(s);
+        label(n);
+        if (n.rule[STM] == null) {
+            throw new IllegalStateException("No tile for " + s.getClass());
+        }
+        reduce(n, STM);
+    }
+
+    private Node build(Stm s) {
+        if (s instanceof MOVE) {
+            return new Node(s, MOVE_,
+                build(((MOVE)s).getDestination()), build(((MOVE)s).getSource()));
+        }
+        if (s instanceof EXPSTM) {
+            return new Node(s, EXPSTM_, build(((EXPSTM)s).getExpression()));
+        }
+        if (s instanceof JUMP) {
+            return new Node(s, JUMP_, build(((JUMP)s).getExpression()));
+        }
+        if (s instanceof CJUMP) {
+            return new Node(s, CJUMP_,
+                build(((CJUMP)s).getLeft()), build(((CJUMP)s).getRight()));
+        }
+        if (s instanceof SEQ) {
+            return new Node(s, SEQ_,
+                build(((SEQ)s).getLeft()), build(((SEQ)s).getRight()));
+        }
+        if (s instanceof LABEL) {
+            return new Node(s, LABEL_);
+        }
+        throw new IllegalArgumentException("Unrecognized Stm: " + s.getClass());
+    }
+
+    private Node build(Exp e) {
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP)e;
+            return new Node(e, b.getOperation(), build(b.getLeft()), build(b.getRight()));
+        }
+        if (e instanceof TEMP) {
+            return new Node(e, TEMP_);
+        }
+        if (e instanceof CONST) {
+            return new Node(e, CONST_);
+        }
+        if (e instanceof NAME) {
+            return new Node(e, NAME_);
+        }
+        if (e instanceof MEM) {
+            return new Node(e, MEM_, build(((MEM)e).getExpression()));
+        }
+        if (e instanceof CALL) {
+            CALL c = (CALL)e;
+            return new Node(e, CALL_, build(c.getCallable()), build(c.getArguments()));
+        }
+        if (e instanceof ESEQ) {
+            ESEQ q = (ESEQ)e;
+            return new Node(e, ESEQ_, build(q.getStatement()), build(q.getExpression()));
+        }
+        throw new IllegalArgumentException("Unrecognized Exp: " + e.getClass());
+    }
+
+    private Node build(List<Exp> args) {
+        if (args == null) {
+            return new Node(null, NOARGS_);
+        }
+        return new Node(args, ARGLIST_, build(args.head), build(args.tail));
+    }
+
+    /**
+     * Labels n and its subtrees, bottom-up.
+     */
+    private void label(Node n) {
+        for (Node k : n.kids) {
+            label(k);
+        }
+
+        java.util.Arrays.fill(n.cost, INFINITE);
+        for (Rule r : byOp.get(n.op)) {
+            int c = match(r.pattern, n);
+            if (c < INFINITE) {
+                c += r.cost(n);
+            }
+            if (c < n.cost[r.lhs]) {
+                n.cost[r.lhs] = c;
+                n.rule[r.lhs] = r;
+            }
+        }
+
+        // Chain rules, until nothing gets cheaper:
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule r : chains) {
+                int c = n.cost[r.pattern.nt];
+                if (c >= INFINITE) continue;
+                c += r.cost(n);
+                if (c < n.cost[r.lhs]) {
+                    n.cost[r.lhs] = c;
+                    n.rule[r.lhs] = r;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cost of the nonterminal leaves of p matched against n, or INFINITE
+     * if p doesn't match.
+     */
+    private static int match(Pattern p, Node n) {
+        if (p.isNonterminal()) {
+            return n.cost[p.nt];
+        }
+        if (p.op != n.op || p.kids.length != n.kids.length) {
+            return INFINITE;
+        }
+        int c = 0;
+        for (int i = 0; i < p.kids.length && c < INFINITE; i++) {
+            c += match(p.kids[i], n.kids[i]);
+        }
+        return Math.min(c, INFINITE);
+    }
+
+    /**
+     * Emits the instructions deriving nt from n, returns its value.
+     */
+    private Object reduce(Node n, int nt) {
+        Rule r = n.rule[nt];
+        if (r.isChain()) {
+            return r.emit(g, n, new Object[] {reduce(n, r.pattern.nt)});
+        }
+
+        ArrayList<Pattern> leaves = new ArrayList<Pattern>();
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        leaves(r.pattern, n, leaves, nodes);
+
+        Object[] values = new Object[leaves.size()];
+        for (int k = 0; k < values.length; k++) {
+            int i = r.rightToLeft() ? values.length - 1 - k : k;
+            values[i] = reduceNested(n, nodes.get(i), leaves.get(i).nt,
+                i == values.length - 1);
+        }
+        return r.emit(g, n, values);
+    }
+
+    /**
+     * Only the last statement of a SEQ is followed by what follows the SEQ.
+     */
+    private Object reduceNested(Node parent, Node n, int nt, boolean last) {
+        if (nt != STM || (parent.op == SEQ_ && last)) {
+            return reduce(n, nt);
+        }
+        temp.Label next = g.fallThrough;
+        g.fallThrough = null;
+        Object value = reduce(n, nt);
+        g.fallThrough = next;
+        return value;
+    }
+
+    private static void leaves(Pattern p, Node n, ArrayList<Pattern> leaves,
+        ArrayList<Node> nodes) {
+        if (p.isNonterminal()) {
+            leaves.add(p);
+            nodes.add(n);
+            return;
+        }
+        for (int i = 0; i < p.kids.length; i++) {
+            leaves(p.kids[i], n.kids[i], leaves, nodes);
+        }
+    }
+}
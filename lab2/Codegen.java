@@ -1,767 +1,463 @@
-package x86;
-
-import util.List;
-
-import assem.Instr;
-import assem.OPER;
-import temp.Label;
-import temp.Temp;
-import tree.*;
-
-public class Codegen {
-    Frame frame;
-    private List<Instr> ilist = null, last = null;
-
-    public Codegen(Frame f) {
-        frame = f;
-    }
-
-    /**
-     * Adds an instruction to the end of the list of instructions.
-     *
-     * @param inst
-     */
-    private void emit(Instr inst) {
-        if (last != null) {
-            last = last.tail = new List<Instr>(inst, null);
-        } else {
-            last = ilist = new List<Instr>(inst, null);
-        }
-    }
-
-    /**
-     * Helper function that returns the correct string for a memory access in an
-     * instruction. Valid memory accesses are:
-     * [reg], [reg+const] and [reg-const].
-     *
-     * @param m
-     * @param idx Base index for the first register in the string (`u<idx>).
-     * @return
-     */
-    private String getMemAddressString(MEM m, int idx) {
-        Exp e = m.getExpression();
-
-        // MEM(BINOP(-, TEMP, CONST)):
-        if (e instanceof BINOP &&
-            ((BINOP)e).getOperation() == BINOP.MINUS &&
-            ((BINOP)e).getLeft() instanceof TEMP &&
-            ((BINOP)e).getRight() instanceof CONST) {
-            long c = ((CONST)((BINOP)e).getRight()).getValue();
-            return "[`u" + idx + ((c != 0) ? ("-" + c) : "") + "]";
-        }
-
-        // MEM(BINOP(+, TEMP, CONST)):
-        if (e instanceof BINOP &&
-            ((BINOP)e).getOperation() == BINOP.PLUS &&
-            ((BINOP)e).getLeft() instanceof TEMP &&
-            ((BINOP)e).getRight() instanceof CONST) {
-            long c = ((CONST)((BINOP)e).getRight()).getValue();
-            return "[`u" + idx + ((c != 0) ? ("+" + c) : "") + "]";
-        }
-
-        // MEM(BINOP(+, CONST, TEMP)):
-        if (e instanceof BINOP &&
-            ((BINOP)e).getOperation() == BINOP.PLUS &&
-            ((BINOP)e).getLeft() instanceof CONST &&
-            ((BINOP)e).getRight() instanceof TEMP) {
-            long c = ((CONST)((BINOP)e).getLeft()).getValue();
-            return "[`u" + idx + ((c != 0) ? ("+" + c) : "") + "]";
-        }
-
-        // MEM(BINOP(+, EXP, EXP)):
-        if (e instanceof BINOP && ((BINOP)e).getOperation() == BINOP.PLUS) {
-            return "[`u" + idx + "+`u" + (idx + 1) + "]";
-        }
-
-        return "[`u" + idx + "]";
-    }
-
-    /**
-     * Helper function like the one above that returns the temporary register
-     * instead.
-     *
-     * @param m
-     * @return
-     */
-    private List<Temp> getMemAddressTempList(MEM m) {
-        Exp e = m.getExpression();
-
-        // MEM(BINOP(-, TEMP, CONST)):
-        if (e instanceof BINOP &&
-            ((BINOP)e).getOperation() == BINOP.MINUS &&
-            ((BINOP)e).getLeft() instanceof TEMP &&
-            ((BINOP)e).getRight() instanceof CONST) {
-            return new List<Temp>(munchExp(((BINOP)e).getLeft()), null);
-        }
-
-        // MEM(BINOP(+, TEMP, CONST)):
-        if (e instanceof BINOP &&
-            ((BINOP)e).getOperation() == BINOP.PLUS &&
-            ((BINOP)e).getLeft() instanceof TEMP &&
-            ((BINOP)e).getRight() instanceof CONST) {
-            return new List<Temp>(munchExp(((BINOP)e).getLeft()), null);
-        }
-
-        // MEM(BINOP(+, CONST, TEMP)):
-        if (e instanceof BINOP &&
-            ((BINOP)e).getOperation() == BINOP.PLUS &&
-            ((BINOP)e).getLeft() instanceof CONST &&
-            ((BINOP)e).getRight() instanceof TEMP) {
-            return new List<Temp>(munchExp(((BINOP)e).getRight()), null);
-        }
-
-        // MEM(BINOP(+, TEMP, TEMP)):
-        if (e instanceof BINOP && ((BINOP)e).getOperation() == BINOP.PLUS) {
-            return new List<Temp>(
-                munchExp(((BINOP)e).getLeft()),
-                new List<Temp>(munchExp(((BINOP)e).getRight()), null)
-            );
-        }
-
-        return new List<Temp>(munchExp(e), null);
-    }
-
-    /**
-     * Helper function that evaluates a BINOP between two constants.
-     *
-     * @param b
-     * @return
-     */
-    private long evaluateConstsBinop(BINOP b) {
-        long result = 0;
-        long v1 = ((CONST)b.getLeft()).getValue();
-        long v2 = ((CONST)b.getRight()).getValue();
-
-        switch (b.getOperation()) {
-            case BINOP.AND:
-                result = v1 & v2;
-                break;
-            case BINOP.ARSHIFT:
-                result = v1 >> v2;
-                break;
-            case BINOP.DIV:
-                result = v1 / v2;
-                break;
-            case BINOP.LSHIFT:
-                result = v1 << v2;
-                break;
-            case BINOP.MINUS:
-                result = v1 - v2;
-                break;
-            case BINOP.OR:
-                result = v1 | v2;
-                break;
-            case BINOP.PLUS:
-                result = v1 + v2;
-                break;
-            case BINOP.RSHIFT:
-                result = v1 >>> v2;
-                break;
-            case BINOP.TIMES:
-                result = v1 * v2;
-                break;
-            case BINOP.XOR:
-                result = v1 ^ v2;
-                break;
-        }
-
-        return result;
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm node using the Maximal Munch
-     * algorithm.
-     *
-     * @param s
-     */
-    void munchStm(Stm s) {
-        if (s instanceof EXPSTM) {
-            munchStm((EXPSTM)s);
-        } else if (s instanceof SEQ) {
-            munchStm((SEQ)s);
-        } else if (s instanceof LABEL) {
-            munchStm((LABEL)s);
-        } else if (s instanceof JUMP) {
-            munchStm((JUMP)s);
-        } else if (s instanceof CJUMP) {
-            munchStm((CJUMP)s);
-        } else if (s instanceof MOVE) {
-            munchStm((MOVE)s);
-        } else {
-            System.err.println("Unrecognized Stm: " + s.getClass());
-        }
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm.EXPSTM.
-     *
-     * @param e
-     */
-    void munchStm(EXPSTM e) {
-        munchExp(e.getExpression());
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm.SEQ.
-     *
-     * @param s
-     */
-    void munchStm(SEQ s) {
-        munchStm(s.getLeft());
-        munchStm(s.getRight());
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm.LABEL.
-     *
-     * @param l
-     */
-    void munchStm(LABEL l) {
-        emit(new assem.LABEL(l.getLabel().toString() + ":", l.getLabel()));
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm.JUMP.
-     *
-     * @param j
-     */
-    void munchStm(JUMP j) {
-        Exp e = j.getExpression();
-        if (e instanceof NAME) {
-            // JUMP(NAME):
-            Label l = ((NAME)e).getLabel();
-            emit(new OPER("jmp `j0", new List<Label>(l, null)));
-        } else {
-            Temp u = munchExp(e);
-            System.out.println(e.getClass());
-            emit(new OPER(
-                "jmp `u0",
-                null,
-                new List<Temp>(u, null),
-                j.getTargets()
-            ));
-        }
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm.CJUMP.
-     *
-     * @param c
-     */
-    void munchStm(CJUMP c) {
-        String inst = "";
-
-        switch (c.getOperation()) {
-            case CJUMP.EQ:
-                inst = "jz";
-                break;
-            case CJUMP.NE:
-                inst = "jnz";
-                break;
-            case CJUMP.LT:
-                inst = "jl";
-                break;
-            case CJUMP.LE:
-                inst = "jle";
-                break;
-            case CJUMP.GT:
-                inst = "jg";
-                break;
-            case CJUMP.GE:
-                inst = "jge";
-                break;
-            case CJUMP.ULT:
-                inst = "jb";
-                break;
-            case CJUMP.ULE:
-                inst = "jbe";
-                break;
-            case CJUMP.UGT:
-                inst = "ja";
-                break;
-            case CJUMP.UGE:
-                inst = "jae";
-                break;
-        }
-
-        if (c.getLeft() instanceof MEM) {
-            String cmp0 = this.getMemAddressString((MEM)c.getLeft(), 0);
-            List<Temp> ulist = this.getMemAddressTempList((MEM)c.getLeft());
-
-            String cmp1 = "";
-            if (c.getRight() instanceof CONST) {
-                // CJUMP(OP, MEM, CONST):
-                cmp0 = "dword " + cmp0;
-                cmp1 += ((CONST)c.getRight()).getValue();
-            } else if (c.getRight() instanceof BINOP &&
-                ((BINOP)c.getRight()).getLeft() instanceof CONST &&
-                ((BINOP)c.getRight()).getRight() instanceof CONST) {
-                // CJUMP(OP, MEM, BINOP(?, CONST, CONST)):
-                cmp0 = "dword " + cmp0;
-                cmp1 += this.evaluateConstsBinop((BINOP)c.getRight());
-            } else {
-                // CJUMP(OP, MEM, EXP):
-                ulist.addAll(new List<Temp>(munchExp(c.getRight()), null));
-                cmp1 = "`u" + (ulist.size() - 1);
-            }
-
-            emit(new OPER("cmp " + cmp0 + ", " + cmp1, null, ulist));
-        } else {
-            Temp u0 = munchExp(c.getLeft());
-
-            String cmp1 = "";
-            List <Temp> ulist;
-            if (c.getRight() instanceof CONST) {
-                // CJUMP(OP, EXP, CONST):
-                cmp1 += ((CONST)c.getRight()).getValue();
-                ulist = new List<Temp>(u0, null);
-            } else if (c.getRight() instanceof MEM) {
-                // CJUMP(OP, EXP, MEM):
-                cmp1 = this.getMemAddressString((MEM)c.getRight(), 1);
-                ulist = this.getMemAddressTempList((MEM)c.getRight());
-                ulist = new List<Temp>(u0, ulist);
-            } else if (c.getRight() instanceof BINOP &&
-                ((BINOP)c.getRight()).getLeft() instanceof CONST &&
-                ((BINOP)c.getRight()).getRight() instanceof CONST) {
-                // CJUMP(OP, EXP, BINOP(?, CONST, CONST)):
-                cmp1 += this.evaluateConstsBinop((BINOP)c.getRight());
-                ulist = new List<Temp>(u0, null);
-            } else {
-                cmp1 = "`u1";
-                Temp u1 = munchExp(c.getRight());
-                ulist = new List<Temp>(u0, new List<Temp>(u1, null));
-            }
-
-            emit(new OPER("cmp `u0, " + cmp1, null, ulist));
-        }
-
-        Label next = new Label();
-        Label ltrue = c.getLabelTrue();
-        Label lfalse = c.getLabelFalse();
-        emit(new OPER(
-            inst + " `j0",
-            new List<Label>(ltrue, new List<Label>(next, null))
-        ));
-        emit(new assem.LABEL(next.toString() + ":", next));
-        emit(new OPER("jmp `j0", new List<Label>(lfalse, null)));
-    }
-
-    /**
-     * Emits instructions for a given Tree.Stm.MOVE.
-     *
-     * @param m
-     */
-    void munchStm(MOVE m) {
-        Exp src = m.getSource();
-        Exp dst = m.getDestination();
-
-        // MOVE(MEM, EXP):
-        if (dst instanceof MEM) {
-            String sdst = this.getMemAddressString((MEM)dst, 0);
-            List<Temp> ulist = this.getMemAddressTempList((MEM)dst);
-
-            String ssrc = "";
-            if (src instanceof CONST) {
-                // MOVE(MEM, CONST):
-                sdst = "dword " + sdst;
-                ssrc += ((CONST)src).getValue();
-            } else if (src instanceof BINOP &&
-                ((BINOP)src).getLeft() instanceof CONST &&
-                ((BINOP)src).getRight() instanceof CONST) {
-                // MOVE(MEM, BINOP(?, CONST, CONST)):
-                sdst = "dword " + sdst;
-                ssrc += this.evaluateConstsBinop((BINOP)src);
-            } else {
-                ulist.addAll(new List<Temp>(munchExp(src), null));
-                ssrc = "`u" + (ulist.size() - 1);
-            }
-
-            emit(new OPER("mov " + sdst + ", " + ssrc, null, ulist));
-            return;
-        }
-
-        // MOVE(TEMP, CONST):
-        if (src instanceof CONST) {
-            Temp tdst = munchExp(dst);
-            emit(new OPER(
-                "mov `d0, " + ((CONST)src).getValue(),
-                new List<Temp>(tdst, null),
-                null
-            ));
-            return;
-        }
-
-        // MOVE(TEMP, MEM):
-        if (src instanceof MEM) {
-            Temp tdst = munchExp(dst);
-            emit(new OPER(
-                "mov `d0, " + this.getMemAddressString((MEM)src, 0),
-                new List<Temp>(tdst, null),
-                this.getMemAddressTempList((MEM)src)
-            ));
-            return;
-        }
-
-        // MOVE(TEMP, BINOP(?, CONST, CONST)):
-        if (src instanceof BINOP &&
-            ((BINOP)src).getLeft() instanceof CONST &&
-            ((BINOP)src).getRight() instanceof CONST) {
-            Temp tdst = munchExp(dst);
-            emit(new OPER(
-                "mov `d0, " + this.evaluateConstsBinop((BINOP)src),
-                new List<Temp>(tdst, null),
-                null
-            ));
-            return;
-        }
-
-        // MOVE(TEMP, EXP):
-        emit(new assem.MOVE(munchExp(dst), munchExp(src)));
-    }
-
-    /**
-     * Emits instructions for a given Tree.Exp node using the Maximal Munch
-     * algorithm. Returns the temporary register where the expression's result
-     * is stored.
-     *
-     * @param s
-     */
-    Temp munchExp(Exp e) {
-        if (e instanceof TEMP) {
-            return munchExp((TEMP)e);
-        } else if (e instanceof ESEQ) {
-            return munchExp((ESEQ)e);
-        } else if (e instanceof NAME) {
-            return munchExp((NAME)e);
-        } else if (e instanceof CONST) {
-            return munchExp((CONST)e);
-        } else if (e instanceof MEM) {
-            return munchExp((MEM)e);
-        } else if (e instanceof CALL) {
-            return munchExp((CALL)e);
-        } else if (e instanceof BINOP) {
-            return munchExp((BINOP)e);
-        } else {
-            System.err.println("Unrecognized Exp: " + e.getClass());
-            return new Temp();
-        }
-    }
-
-    /**
-     * Returns the temporary register for a given Tree.Exp.TEMP.
-     *
-     * @param t
-     * @return
-     */
-    Temp munchExp(TEMP t) {
-        return t.getTemp();
-    }
-
-    /**
-     * Emits instructions and returns the temporary register for a given
-     * Tree.Exp.ESEQ.
-     *
-     * @param e
-     * @return
-     */
-    Temp munchExp(ESEQ e) {
-        munchStm(e.getStatement());
-        return munchExp(e.getExpression());
-    }
-
-    /**
-     * Emits instructions and returns the temporary register for a given
-     * Tree.Exp.NAME.
-     *
-     * @param n
-     * @return
-     */
-    Temp munchExp(NAME n) {
-        Temp r = new Temp();
-        emit(new OPER(
-            "mov `d0, " + n.getLabel().toString(),
-            new List<Temp>(r, null),
-            null
-        ));
-        return r;
-    }
-
-    /**
-     * Emits instructions and returns the temporary register for a given
-     * Tree.Exp.CONST.
-     *
-     * @param c
-     * @return
-     */
-    Temp munchExp(CONST c) {
-        Temp r = new Temp();
-        emit(new OPER(
-            "mov `d0, " + c.getValue(),
-            new List<Temp>(r, null),
-            null
-        ));
-        return r;
-    }
-
-    /**
-     * Emits instructions and returns the temporary register for a given
-     * Tree.Exp.MEM.
-     *
-     * @param m
-     * @return
-     */
-    Temp munchExp(MEM m) {
-        Temp r = new Temp();
-        emit(new OPER(
-            "mov `d0, " + this.getMemAddressString(m, 0),
-            new List<Temp>(r, null),
-            this.getMemAddressTempList(m)
-        ));
-        return r;
-    }
-
-    /**
-     * Emits instructions and returns the temporary register for a given
-     * Tree.Exp.CALL.
-     *
-     * @param c
-     * @return
-     */
-    Temp munchExp(CALL c) {
-        List<Temp> ulist;
-        List<Exp> args = c.getArguments();
-
-        String source = "";
-        Exp e = c.getCallable();
-        if (e instanceof NAME) {
-            // CALL(NAME):
-            source = ((NAME)e).getLabel().toString();
-            ulist = munchArgs(args);
-        } else {
-            Temp u;
-            if (e instanceof MEM) {
-                // CALL(MEM):
-                source = this.getMemAddressString((MEM)e, 0);
-                ulist = this.getMemAddressTempList((MEM)e);
-            } else {
-                source = "`u0";
-                ulist = new List<Temp>(munchExp(e), null);
-            }
-            ulist.addAll(munchArgs(args));
-        }
-        emit(new OPER("call " + source, frame.calleeDefs(), ulist));
-
-        // Restore the stack:
-        if (args.size() > 0) {
-            emit(new OPER(
-                "add `d0, " + (frame.wordsize() * args.size()),
-                new List<Temp>(frame.SP(), null),
-                new List<Temp>(frame.SP(), null)
-            ));
-        }
-
-        return frame.RV();
-    }
-
-    /**
-     * Emits instructions to move all the CALL arguments to their correct
-     * positions.
-     *
-     * @param args
-     * @return
-     */
-    List<Temp> munchArgs(List<Exp> args) {
-        if (args == null) {
-            return null;
-        }
-
-        // The parameters should be pushed in inverted order:
-        List<Temp> rlist = munchArgs(args.tail);
-
-        List<Temp> ulist;
-        String source = "";
-        if (args.head instanceof CONST) {
-            // PUSH(CONST):
-            source += ((CONST)args.head).getValue();
-            ulist = new List<Temp>(frame.SP(), null);
-        } else if (args.head instanceof NAME) {
-            // PUSH(NAME):
-            source += ((NAME)args.head).getLabel().toString();
-            ulist = new List<Temp>(frame.SP(), null);
-        } else if (args.head instanceof MEM) {
-            // PUSH(MEM):
-            source += "dword " + this.getMemAddressString(((MEM)args.head), 0);
-            ulist = this.getMemAddressTempList(((MEM)args.head));
-            ulist.addAll(new List<Temp>(frame.SP(), null));
-        } else if (args.head instanceof BINOP &&
-            (((BINOP)args.head).getLeft() instanceof CONST) &&
-            (((BINOP)args.head).getRight() instanceof CONST)) {
-            // PUSH(BINOP(?, CONST, CONST)):
-            source += this.evaluateConstsBinop((BINOP)args.head);
-            ulist = new List<Temp>(frame.SP(), null);
-        } else {
-            source = "`u0";
-            Temp u = munchExp(args.head);
-            rlist = new List<Temp>(u, rlist);
-            ulist = new List<Temp>(u, new List<Temp>(frame.SP(), null));
-        }
-
-        emit(new OPER(
-            "push " + source,
-            new List<Temp>(frame.SP(), null),
-            ulist
-        ));
-
-        return rlist;
-    }
-
-    /**
-     * Emits instructions and returns the temporary register for a given
-     * Tree.Exp.BINOP.
-     *
-     * @param b
-     * @return
-     */
-    Temp munchExp(BINOP b) {
-        Temp r = new Temp();
-
-        // BINOP(CONST, CONST):
-        if ((b.getLeft() instanceof CONST) && (b.getRight() instanceof CONST)) {
-            long result = this.evaluateConstsBinop(b);
-            emit(new OPER("mov `d0, " + result, new List<Temp>(r, null), null));
-        }
-
-        // BINOP(TIMES, A, B):
-        if (b.getOperation() == BINOP.TIMES) {
-            Temp left = munchExp(b.getLeft());
-            Temp right = munchExp(b.getRight());
-
-            // One operand should be in EAX:
-            emit(new assem.MOVE(frame.eax, left));
-
-            // Higher part of result in EAX and lower part in EDX:
-            emit(new OPER(
-                "mul `u1",
-                new List<Temp>(frame.eax, new List<Temp>(frame.edx, null)),
-                new List<Temp>(frame.eax, new List<Temp>(right, null))
-            ));
-
-            emit(new assem.MOVE(r, frame.eax));
-            return r;
-        }
-
-        // BINOP(DIV, A, B):
-        if (b.getOperation() == BINOP.DIV) {
-            Temp left = munchExp(b.getLeft());
-            Temp right = munchExp(b.getRight());
-
-            // Dividend should be in EDX:EAX:
-            emit(new assem.MOVE(frame.eax, left));
-            emit(new OPER("cdq"));
-
-            // Remainder in EDX and quotient in EAX:
-            List<Temp> list;
-            list = new List<Temp>(frame.eax, new List<Temp>(frame.edx, null));
-            emit(new OPER(
-                "div `u0",
-                list,
-                new List<Temp>(right, list)
-            ));
-
-            emit(new assem.MOVE(r, frame.eax));
-            return r;
-        }
-
-        String inst = "";
-        switch (b.getOperation()) {
-            case BINOP.AND:
-                inst = "and";
-                break;
-            case BINOP.ARSHIFT:
-                inst = "sar";
-                break;
-            case BINOP.LSHIFT:
-                inst = "shl";
-                break;
-            case BINOP.MINUS:
-                inst = "sub";
-                break;
-            case BINOP.OR:
-                inst = "or";
-                break;
-            case BINOP.PLUS:
-                inst = "add";
-                break;
-            case BINOP.RSHIFT:
-                inst = "shr";
-                break;
-            case BINOP.XOR:
-                inst = "xor";
-                break;
-        }
-
-        // Left operand:
-        if (b.getLeft() instanceof CONST) {
-            // BINOP(?, CONST, ?):
-            emit(new OPER(
-                "mov `d0, " + ((CONST)b.getLeft()).getValue(),
-                new List<Temp>(r, null),
-                null
-            ));
-        } else if (b.getLeft() instanceof BINOP &&
-            ((BINOP)b.getLeft()).getLeft() instanceof CONST &&
-            ((BINOP)b.getLeft()).getRight() instanceof CONST) {
-            // BINOP(?, BINOP(?, CONST, CONST), ?):
-            emit(new OPER(
-                "mov `d0, " + this.evaluateConstsBinop((BINOP)b.getLeft()),
-                new List<Temp>(r, null),
-                null
-            ));
-        } else {
-            Temp left = munchExp(b.getLeft());
-            emit(new assem.MOVE(r, left));
-        }
-
-        // Right operand:
-        String operand = "";
-        List<Temp> ulist = new List<Temp>(r, null);
-        if (b.getRight() instanceof CONST) {
-            // BINOP(?, ?, CONST):
-            operand += ((CONST)b.getRight()).getValue();
-        } else if (b.getRight() instanceof BINOP &&
-            ((BINOP)b.getRight()).getLeft() instanceof CONST &&
-            ((BINOP)b.getRight()).getRight() instanceof CONST) {
-            // BINOP(?, ?, BINOP(?, CONST, CONST)):
-            operand += this.evaluateConstsBinop((BINOP)b.getRight());
-        } else if (b.getRight() instanceof MEM) {
-            // BINOP(?, ?, MEM):
-            operand += this.getMemAddressString((MEM)b.getRight(), 1);
-            ulist.addAll(this.getMemAddressTempList((MEM)b.getRight()));
-        } else {
-            operand = "`u0";
-            Temp right = munchExp(b.getRight());
-            ulist = new List<Temp>(right, ulist);
-        }
-        emit(new OPER(
-            inst + " `d0, " + operand,
-            new List<Temp>(r, null),
-            ulist
-        ));
-
-        return r;
-    }
-
-    /**
-     * Generates (selects) list of instructions for a list of IR nodes.
-     *
-     * @param body
-     * @return
-     */
-    public List<Instr> codegen(List<Stm> body) {
-        ilist = last = null;
-        for (Stm s : body) {
-            munchStm(s);
-        }
-        return ilist;
-    }
-}
+package x86;
+
+import util.List;
+
+import assem.Instr;
+import temp.Label;
+import temp.Temp;
+import tree.*;
+
+/**
+ * Instruction selection: the trees of a method body are tiled by the BURS
+ * selector (Burs) with the rules of Rules, whose actions emit through the
+ * helpers below.
+ */
+public class Codegen {
+
+    /**
+     * How arguments are passed: pushed before each call and popped after
+     * it, or stored with "mov [esp + 4k], arg" into an outgoing argument
+     * area at the bottom of the stack, so that calls leave ESP alone. The
+     * area (getOutgoingSize() bytes) isn't part of the selected code: the
+     * caller must reserve it around the body, as regalloc.Driver does.
+     */
+    public enum CallingSequence {
+        PUSH, OUTGOING_AREA
+    }
+
+    Frame frame;
+    private final InstrBuffer buffer;
+    private final Burs burs;
+    private final CallingSequence calls;
+
+    // Largest outgoing argument area of the calls selected, in bytes:
+    private int outgoing;
+
+    // Implicit register lists, shared by the instructions (nothing modifies
+    // them in place):
+    final List<Temp> sp;
+    final List<Temp> eax;
+    final List<Temp> edx;
+    final List<Temp> eaxEdx;
+
+    // Label of the statement after the one being selected, if it is a LABEL:
+    Label fallThrough;
+
+    public Codegen(Frame f) {
+        this(f, new InstrBuffer());
+    }
+
+    /**
+     * Selects into buffer, which is reset by each call to codegen.
+     *
+     * @param f
+     * @param buffer
+     */
+    public Codegen(Frame f, InstrBuffer buffer) {
+        this(f, buffer, CallingSequence.PUSH);
+    }
+
+    /**
+     * @param f
+     * @param buffer reset by each call to codegen
+     * @param calls how arguments are passed
+     */
+    public Codegen(Frame f, InstrBuffer buffer, CallingSequence calls) {
+        frame = f;
+        this.buffer = buffer;
+        this.calls = calls;
+        burs = new Burs(this, Rules.TABLE);
+        sp = new List<Temp>(f.SP(), null);
+        eax = new List<Temp>(Frame.eax, null);
+        edx = new List<Temp>(Frame.edx, null);
+        eaxEdx = new List<Temp>(Frame.eax, edx);
+    }
+
+    /**
+     * Adds an instruction to the end of the list of instructions.
+     *
+     * @param inst
+     */
+    void emit(Instr inst) {
+        buffer.add(inst);
+    }
+
+    /**
+     * Emits the compare and the conditional jump of a CJUMP.
+     *
+     * @param c
+     * @param left
+     * @param right
+     */
+    void cjump(CJUMP c, Operand left, Operand right) {
+        Opcode inst = Opcode.jump(c.getOperation());
+        emit(new X86Instr(Opcode.CMP, left, right));
+
+        // The jump targets are always [taken, not taken], and the "not
+        // taken" label is the next instruction:
+        Label ltrue = c.getLabelTrue();
+        Label lfalse = c.getLabelFalse();
+        if (lfalse == fallThrough) {
+            emit(new X86Instr(
+                inst,
+                new List<Label>(ltrue, new List<Label>(lfalse, null))
+            ));
+        } else if (ltrue == fallThrough) {
+            emit(new X86Instr(
+                inst.negate(),
+                new List<Label>(lfalse, new List<Label>(ltrue, null))
+            ));
+        } else {
+            Label next = new Label();
+            emit(new X86Instr(
+                inst,
+                new List<Label>(ltrue, new List<Label>(next, null))
+            ));
+            emit(new assem.LABEL(next.toString() + ":", next));
+            emit(new X86Instr(Opcode.JMP, new List<Label>(lfalse, null)));
+        }
+    }
+
+    /**
+     * Passes source as the argument before the ones of rest: pushes it, or
+     * with an outgoing area only records it, after loading a memory operand
+     * into a register (the stores come at the call, after every argument
+     * was evaluated, as an argument may make calls itself).
+     *
+     * @param source
+     * @param rest
+     * @return the arguments from source on
+     */
+    List<Operand> argument(Operand source, List<Operand> rest) {
+        if (calls == CallingSequence.PUSH) {
+            emit(new X86Instr(Opcode.PUSH, source, null, sp, sp));
+        } else if (source instanceof Operand.Mem) {
+            Temp r = new Temp();
+            emit(new X86Instr(Opcode.MOV, Operand.reg(r), source));
+            source = Operand.reg(r);
+        }
+        return new List<Operand>(source, rest);
+    }
+
+    /**
+     * Emits a call of callee with the arguments args (see argument).
+     *
+     * @param callee
+     * @param args
+     * @return the register holding the result
+     */
+    Temp call(Operand callee, List<Operand> args) {
+        int count = 0;
+        List<Temp> uses = null;
+        if (calls == CallingSequence.PUSH) {
+            // The pushed registers:
+            List<Temp> last = null;
+            for (List<Operand> a = args; a != null; a = a.tail, count++) {
+                if (a.head instanceof Operand.Reg) {
+                    List<Temp> cell = new List<Temp>(((Operand.Reg)a.head).temp, null);
+                    if (last == null) {
+                        uses = cell;
+                    } else {
+                        last.tail = cell;
+                    }
+                    last = cell;
+                }
+            }
+        } else {
+            for (List<Operand> a = args; a != null; a = a.tail, count++) {
+                emit(new X86Instr(
+                    Opcode.MOV,
+                    Operand.mem(frame.SP(), frame.wordsize() * count),
+                    a.head
+                ));
+            }
+            uses = sp;
+            outgoing = Math.max(outgoing, frame.wordsize() * count);
+        }
+
+        emit(new X86Instr(Opcode.CALL, callee, null, frame.calleeDefs(), uses));
+
+        // Restore the stack:
+        if (calls == CallingSequence.PUSH && count > 0) {
+            emit(new X86Instr(
+                Opcode.ADD,
+                Operand.reg(frame.SP()),
+                Operand.imm(frame.wordsize() * count)
+            ));
+        }
+        return frame.RV();
+    }
+
+    /**
+     * Size in bytes of the outgoing argument area the calls selected so far
+     * need (0 when arguments are pushed).
+     *
+     * @return
+     */
+    public int getOutgoingSize() {
+        return outgoing;
+    }
+
+    /**
+     * Emits left / right with idiv.
+     *
+     * @param left
+     * @param right register or memory operand
+     * @return
+     */
+    Temp idiv(Temp left, Operand right) {
+        Temp r = new Temp();
+
+        // Dividend should be in EDX:EAX (sign extended):
+        emit(new assem.MOVE(Frame.eax, left));
+        emit(new X86Instr(
+            Opcode.CDQ,
+            null,
+            null,
+            edx,
+            eax
+        ));
+
+        // Remainder in EDX and quotient in EAX:
+        emit(new X86Instr(Opcode.IDIV, right, null, eaxEdx, eaxEdx));
+
+        emit(new assem.MOVE(r, Frame.eax));
+        return r;
+    }
+
+    /**
+     * Emits left shifted by a count in a register. The count of a shift
+     * can only be CL, so it is copied to ECX first and the allocator keeps
+     * ECX for it until the shift.
+     *
+     * @param inst shl, shr or sar
+     * @param left register or immediate operand
+     * @param count
+     * @return
+     */
+    Temp shift(Opcode inst, Operand left, Temp count) {
+        Temp r = new Temp();
+        if (left instanceof Operand.Reg) {
+            emit(new assem.MOVE(r, ((Operand.Reg)left).temp));
+        } else {
+            emit(new X86Instr(Opcode.MOV, Operand.reg(r), left));
+        }
+        emit(new assem.MOVE(Frame.ecx, count));
+        emit(new X86Instr(inst, Operand.reg(r), Operand.reg(Frame.ecx)));
+        return r;
+    }
+
+    /**
+     * Emits x * c without a multiplication when c is 2^k, 3*2^k, 5*2^k or
+     * 9*2^k (or minus one of them): lea for the 3/5/9 factor, shl for the
+     * power of two and neg for the sign. Other constants use "imul r, imm".
+     *
+     * @param x
+     * @param c
+     * @return
+     */
+    Temp multiply(Temp x, int c) {
+        Temp r = new Temp();
+        if (c == 0) {
+            emit(new X86Instr(Opcode.MOV, Operand.reg(r), Operand.imm(0)));
+            return r;
+        }
+
+        // |c| = odd * 2^k (Integer.MIN_VALUE is 2^31 here):
+        int n = (c < 0) ? -c : c;
+        int k = Integer.numberOfTrailingZeros(n);
+        int odd = n >>> k;
+        if (odd != 1 && odd != 3 && odd != 5 && odd != 9) {
+            emit(new assem.MOVE(r, x));
+            emit(new X86Instr(Opcode.IMUL, Operand.reg(r), Operand.imm(c)));
+            return r;
+        }
+
+        if (odd == 1) {
+            emit(new assem.MOVE(r, x));
+        } else {
+            // lea r, [x + x*(odd - 1)]:
+            emit(new X86Instr(
+                Opcode.LEA,
+                Operand.reg(r),
+                Operand.mem(x, x, odd - 1, 0)
+            ));
+        }
+        if (k > 0) {
+            emit(new X86Instr(Opcode.SHL, Operand.reg(r), Operand.imm(k)));
+        }
+        if (c < 0) {
+            emit(new X86Instr(Opcode.NEG, Operand.reg(r)));
+        }
+        return r;
+    }
+
+    /**
+     * Number of instructions multiply(x, c) emits.
+     *
+     * @param c
+     * @return
+     */
+    static int multiplyCost(int c) {
+        if (c == 0) {
+            return 1;
+        }
+        int n = (c < 0) ? -c : c;
+        int k = Integer.numberOfTrailingZeros(n);
+        int odd = n >>> k;
+        if (odd != 1 && odd != 3 && odd != 5 && odd != 9) {
+            return 2;
+        }
+        return 1 + ((k > 0) ? 1 : 0) + ((c < 0) ? 1 : 0);
+    }
+
+    /**
+     * Emits the signed (truncating) division x / d for a constant d other
+     * than 0 and Integer.MIN_VALUE, without idiv: an arithmetic shift with a
+     * rounding fix for negative x when |d| is a power of two, otherwise a
+     * multiplication by the "magic number" of |d| (Hacker's Delight, 10-3).
+     * A negative divisor negates the quotient.
+     *
+     * @param x
+     * @param d
+     * @return
+     */
+    Temp divide(Temp x, int d) {
+        Temp r = new Temp();
+        int n = (d < 0) ? -d : d;
+        int k = Integer.numberOfTrailingZeros(n);
+
+        if (n == 1) {
+            emit(new assem.MOVE(r, x));
+        } else if ((n & (n - 1)) == 0) {
+            // r = (x + (x < 0 ? 2^k - 1 : 0)) >> k:
+            emit(new assem.MOVE(r, x));
+            if (k > 1) {
+                emit(new X86Instr(Opcode.SAR, Operand.reg(r), Operand.imm(31)));
+            }
+            emit(new X86Instr(Opcode.SHR, Operand.reg(r), Operand.imm(32 - k)));
+            emit(new X86Instr(Opcode.ADD, Operand.reg(r), Operand.reg(x)));
+            emit(new X86Instr(Opcode.SAR, Operand.reg(r), Operand.imm(k)));
+        } else {
+            int[] magic = magic(n);
+
+            // EDX <- high half of magic * x:
+            emit(new X86Instr(
+                Opcode.MOV,
+                Operand.reg(Frame.eax),
+                Operand.imm(magic[0])
+            ));
+            emit(new X86Instr(
+                Opcode.WIDE_IMUL,
+                Operand.reg(x),
+                null,
+                eaxEdx,
+                eax
+            ));
+            if (magic[0] < 0) {
+                emit(new X86Instr(
+                    Opcode.ADD,
+                    Operand.reg(Frame.edx),
+                    Operand.reg(x)
+                ));
+            }
+            if (magic[1] > 0) {
+                emit(new X86Instr(
+                    Opcode.SAR,
+                    Operand.reg(Frame.edx),
+                    Operand.imm(magic[1])
+                ));
+            }
+
+            // Add one when x is negative:
+            Temp sign = new Temp();
+            emit(new assem.MOVE(sign, x));
+            emit(new X86Instr(Opcode.SHR, Operand.reg(sign), Operand.imm(31)));
+            emit(new assem.MOVE(r, Frame.edx));
+            emit(new X86Instr(Opcode.ADD, Operand.reg(r), Operand.reg(sign)));
+        }
+
+        if (d < 0) {
+            emit(new X86Instr(Opcode.NEG, Operand.reg(r)));
+        }
+        return r;
+    }
+
+    /**
+     * Number of instructions divide(x, d) emits.
+     *
+     * @param d
+     * @return
+     */
+    static int divideCost(int d) {
+        int n = (d < 0) ? -d : d;
+        int cost = (d < 0) ? 1 : 0;
+        if (n == 1) {
+            return cost + 1;
+        }
+        if ((n & (n - 1)) == 0) {
+            return cost + ((n > 2) ? 5 : 4);
+        }
+        int[] magic = magic(n);
+        return cost + 6 + ((magic[0] < 0) ? 1 : 0) + ((magic[1] > 0) ? 1 : 0);
+    }
+
+    /**
+     * Helper function that computes the magic number M and the shift s of a
+     * signed division by d >= 3 (not a power of two):
+     * x / d = ((M * x) >> (32 + s)) + (x < 0 ? 1 : 0), adding x to the high
+     * half first when M is negative.
+     *
+     * @param d
+     * @return {M, s}
+     */
+    private static int[] magic(int d) {
+        final long two31 = 0x80000000L;
+        long anc = two31 - 1 - two31 % d;
+        int p = 31;
+        long q1 = two31 / anc;
+        long r1 = two31 - q1 * anc;
+        long q2 = two31 / d;
+        long r2 = two31 - q2 * d;
+        long delta;
+        do {
+            p++;
+            q1 = 2 * q1;
+            r1 = 2 * r1;
+            if (r1 >= anc) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 = 2 * q2;
+            r2 = 2 * r2;
+            if (r2 >= d) {
+                q2++;
+                r2 -= d;
+            }
+            delta = d - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+
+        return new int[] {(int)(q2 + 1), p - 32};
+    }
+
+    /**
+     * Generates (selects) list of instructions for a list of IR nodes. The
+     * trees are constant folded and the basic blocks laid out first.
+     *
+     * @param body
+     * @return
+     */
+    public List<Instr> codegen(List<Stm> body) {
+        buffer.reset();
+        body = new ConstFolding().optimize(body);
+        body = new BlockLayout().optimize(body);
+        for (List<Stm> l = body; l != null; l = l.tail) {
+            fallThrough = null;
+            if (l.tail != null && l.tail.head instanceof LABEL) {
+                fallThrough = ((LABEL)l.tail.head).getLabel();
+            }
+            burs.select(l.head);
+        }
+        return buffer.toList();
+    }
+}
@@ -0,0 +1,237 @@
+package x86;
+
+import tree.*;
+import util.List;
+
+/**
+ * Constant folding over the IR trees, bottom-up, before instruction
+ * selection:
+ *     - constant subtrees of any depth become a single CONST (with the 32-bit
+ *       semantics of the target; x/0 and MIN/-1 are left to the hardware);
+ *     - x+0, x-0, x*1, x/1, x|0, x^0, x&-1 and shifts by 0 become x, and
+ *       x*0, x&0 become 0 when x has no side effects;
+ *     - constants are moved to the right of commutative operators, x-c is
+ *       x+(-c), and constants are reassociated into a single one:
+ *       (x+c1)+c2 = x+(c1+c2), (x+c1)+y = (x+y)+c1, (x+c1)*c2 = x*c2+c1*c2,
+ *       (x<<c1)<<c2 = x<<(c1+c2)...
+ *     Trees are immutable, so changed nodes are rebuilt.
+ */
+public class ConstFolding {
+
+    /**
+     * Folds every statement of a method body.
+     *
+     * @param body
+     * @return
+     */
+    public List<Stm> optimize(List<Stm> body) {
+        if (body == null) {
+            return null;
+        }
+        return new List<Stm>(fold(body.head), optimize(body.tail));
+    }
+
+    public Stm fold(Stm s) {
+        if (s instanceof MOVE) {
+            MOVE m = (MOVE)s;
+            Exp dst = m.getDestination();
+            if (dst instanceof MEM) {
+                dst = new MEM(fold(((MEM)dst).getExpression()));
+            }
+            return new MOVE(dst, fold(m.getSource()));
+        }
+        if (s instanceof EXPSTM) {
+            return new EXPSTM(fold(((EXPSTM)s).getExpression()));
+        }
+        if (s instanceof SEQ) {
+            return new SEQ(fold(((SEQ)s).getLeft()), fold(((SEQ)s).getRight()));
+        }
+        if (s instanceof JUMP) {
+            JUMP j = (JUMP)s;
+            return new JUMP(fold(j.getExpression()), j.getTargets());
+        }
+        if (s instanceof CJUMP) {
+            CJUMP c = (CJUMP)s;
+            return new CJUMP(
+                c.getOperation(),
+                fold(c.getLeft()),
+                fold(c.getRight()),
+                c.getLabelTrue(),
+                c.getLabelFalse()
+            );
+        }
+        return s;
+    }
+
+    public Exp fold(Exp e) {
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP)e;
+            return binop(b.getOperation(), fold(b.getLeft()), fold(b.getRight()));
+        }
+        if (e instanceof MEM) {
+            return new MEM(fold(((MEM)e).getExpression()));
+        }
+        if (e instanceof CALL) {
+            CALL c = (CALL)e;
+            return new CALL(fold(c.getCallable()), fold(c.getArguments()));
+        }
+        if (e instanceof ESEQ) {
+            ESEQ q = (ESEQ)e;
+            return new ESEQ(fold(q.getStatement()), fold(q.getExpression()));
+        }
+        return e;
+    }
+
+    private List<Exp> fold(List<Exp> l) {
+        if (l == null) {
+            return null;
+        }
+        return new List<Exp>(fold(l.head), fold(l.tail));
+    }
+
+    /**
+     * Builds BINOP(op, l, r) for already folded l and r, simplified.
+     */
+    private Exp binop(int op, Exp l, Exp r) {
+        // BINOP(?, CONST, CONST):
+        if (l instanceof CONST && r instanceof CONST) {
+            int a = value(l);
+            int b = value(r);
+            if (op != BINOP.DIV || (b != 0 && !(a == Integer.MIN_VALUE && b == -1))) {
+                return new CONST(evaluate(op, a, b));
+            }
+            return new BINOP(op, l, r);
+        }
+
+        // Constants go to the right (x - c is x + -c):
+        if (l instanceof CONST && isCommutative(op)) {
+            Exp t = l;
+            l = r;
+            r = t;
+        }
+        if (op == BINOP.MINUS && r instanceof CONST) {
+            op = BINOP.PLUS;
+            r = new CONST(-value(r));
+        }
+
+        if (r instanceof CONST) {
+            int c = value(r);
+
+            // Identities:
+            if (c == 0 && (op == BINOP.PLUS || op == BINOP.OR || op == BINOP.XOR)) {
+                return l;
+            }
+            if ((c & 31) == 0 && isShift(op)) {
+                return l;
+            }
+            if (c == 1 && (op == BINOP.TIMES || op == BINOP.DIV)) {
+                return l;
+            }
+            if (c == -1 && op == BINOP.AND) {
+                return l;
+            }
+            if (c == 0 && (op == BINOP.TIMES || op == BINOP.AND) && isPure(l)) {
+                return new CONST(0);
+            }
+
+            if (l instanceof BINOP && ((BINOP)l).getRight() instanceof CONST) {
+                BINOP b = (BINOP)l;
+                int c1 = value(b.getRight());
+
+                // (x op c1) op c2 = x op (c1 op c2):
+                if (b.getOperation() == op && isAssociative(op)) {
+                    return binop(op, b.getLeft(), new CONST(evaluate(op, c1, c)));
+                }
+
+                // (x << c1) << c2 = x << (c1 + c2), and the same for >>:
+                if (b.getOperation() == op && isShift(op) &&
+                    (c1 & 31) + (c & 31) < 32) {
+                    return binop(op, b.getLeft(), new CONST((c1 & 31) + (c & 31)));
+                }
+
+                // (x + c1) * c2 = x * c2 + c1 * c2:
+                if (b.getOperation() == BINOP.PLUS && op == BINOP.TIMES) {
+                    return binop(
+                        BINOP.PLUS,
+                        binop(BINOP.TIMES, b.getLeft(), r),
+                        new CONST(c1 * c)
+                    );
+                }
+            }
+            return new BINOP(op, l, r);
+        }
+
+        // (x op c) op y = (x op y) op c, and x op (y op c) = (x op y) op c:
+        if (isAssociative(op)) {
+            if (l instanceof BINOP && ((BINOP)l).getOperation() == op &&
+                ((BINOP)l).getRight() instanceof CONST) {
+                BINOP b = (BINOP)l;
+                return binop(op, binop(op, b.getLeft(), r), b.getRight());
+            }
+            if (r instanceof BINOP && ((BINOP)r).getOperation() == op &&
+                ((BINOP)r).getRight() instanceof CONST) {
+                BINOP b = (BINOP)r;
+                return binop(op, binop(op, l, b.getLeft()), b.getRight());
+            }
+        }
+
+        return new BINOP(op, l, r);
+    }
+
+    /**
+     * Whether evaluating e can be skipped: no calls, no memory accesses
+     * (which may fault) and no division by something other than a non-zero
+     * constant.
+     */
+    private static boolean isPure(Exp e) {
+        if (e instanceof CONST || e instanceof TEMP || e instanceof NAME) {
+            return true;
+        }
+        if (e instanceof BINOP) {
+            BINOP b = (BINOP)e;
+            if (b.getOperation() == BINOP.DIV &&
+                !(b.getRight() instanceof CONST && value(b.getRight()) != 0)) {
+                return false;
+            }
+            return isPure(b.getLeft()) && isPure(b.getRight());
+        }
+        return false;
+    }
+
+    private static boolean isCommutative(int op) {
+        return op == BINOP.PLUS || op == BINOP.TIMES || op == BINOP.AND ||
+               op == BINOP.OR || op == BINOP.XOR;
+    }
+
+    private static boolean isAssociative(int op) {
+        return isCommutative(op);
+    }
+
+    private static boolean isShift(int op) {
+        return op == BINOP.LSHIFT || op == BINOP.RSHIFT || op == BINOP.ARSHIFT;
+    }
+
+    private static int value(Exp e) {
+        return (int)((CONST)e).getValue();
+    }
+
+    /**
+     * Evaluates a BINOP between two 32-bit constants, as the x86 would
+     * (shift counts are taken mod 32).
+     */
+    private static int evaluate(int op, int a, int b) {
+        switch (op) {
+            case BINOP.AND:     return a & b;
+            case BINOP.ARSHIFT: return a >> (b & 31);
+            case BINOP.DIV:     return a / b;
+            case BINOP.LSHIFT:  return a << (b & 31);
+            case BINOP.MINUS:   return a - b;
+            case BINOP.OR:      return a | b;
+            case BINOP.PLUS:    return a + b;
+            case BINOP.RSHIFT:  return a >>> (b & 31);
+            case BINOP.TIMES:   return a * b;
+            case BINOP.XOR:     return a ^ b;
+        }
+        throw new IllegalArgumentException("Unknown BINOP operator " + op);
+    }
+}
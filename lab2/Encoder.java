@@ -0,0 +1,670 @@
+package x86;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import assem.Instr;
+import temp.Label;
+import temp.Temp;
+import temp.TempMap;
+import util.List;
+
+/**
+ * IA-32 machine code for the instructions of a method, after register
+ * allocation, written straight into a ByteBuffer (the text assembly of
+ * Instr.format stays available for debugging).
+ *     Labels are resolved in two passes: the first one sizes every
+ * instruction, with each jmp/jcc to a label of the method in its short
+ * (rel8) form until its displacement doesn't fit, which only makes others
+ * longer, so this is repeated until nothing grows; the second one writes
+ * the bytes. References to labels outside the method (calls, symbolic
+ * operands) are written as in an ELF REL object (the addend in place, -4
+ * for a pc-relative call) and listed in getRelocations().
+ */
+public class Encoder {
+
+    /**
+     * A reference to a label the encoder can't resolve: the 32-bit field at
+     * offset holds S + A - P (relative) or S + A (absolute).
+     */
+    public static class Relocation {
+        public final int offset;
+        public final Label label;
+        public final boolean relative;
+
+        Relocation(int offset, Label label, boolean relative) {
+            this.offset = offset;
+            this.label = label;
+            this.relative = relative;
+        }
+    }
+
+    // Register numbers in ModRM/SIB:
+    private static final String[] REGISTERS = {
+        "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi"
+    };
+    private static final int ESP = 4;
+    private static final int EBP = 5;
+
+    private final TempMap map;
+    private final Map<Temp, Integer> registers;
+
+    // Offsets of the labels of the method, and the relocations:
+    private Map<Label, Integer> labels;
+    private ArrayList<Relocation> relocations;
+
+    // Branches that need a rel32 (from the first pass):
+    private boolean[] near;
+
+    // Output, or null when only counting bytes (the first pass):
+    private ByteBuffer out;
+    private int position;
+
+    /**
+     * @param map register of each temporary (the allocator)
+     */
+    public Encoder(TempMap map) {
+        this.map = map;
+        this.registers = new HashMap<Temp, Integer>();
+    }
+
+    /**
+     * Encodes instrs into a new buffer, flipped for reading.
+     *
+     * @param instrs
+     * @return
+     */
+    public ByteBuffer encode(List<Instr> instrs) {
+        int[] size = layout(instrs);
+        int total = 0;
+        for (int s : size) {
+            total += s;
+        }
+        ByteBuffer b = ByteBuffer.allocate(total);
+        write(instrs, size, b);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Encodes instrs at the position of out (a direct or mapped buffer, for
+     * instance); label offsets are from that position.
+     *
+     * @param instrs
+     * @param out
+     * @return the number of bytes written
+     */
+    public int encode(List<Instr> instrs, ByteBuffer out) {
+        return write(instrs, layout(instrs), out);
+    }
+
+    public java.util.List<Relocation> getRelocations() {
+        return relocations;
+    }
+
+    /**
+     * Offset of each label of the method.
+     */
+    public Map<Label, Integer> getLabels() {
+        return labels;
+    }
+
+    /**
+     * First pass: the size of each instruction and the offset of each label.
+     */
+    private int[] layout(List<Instr> instrs) {
+        Instr[] code = toArray(instrs);
+        int[] size = new int[code.length];
+        boolean[] near = new boolean[code.length];
+        labels = new HashMap<Label, Integer>();
+
+        out = null;
+        for (int i = 0; i < code.length; i++) {
+            if (code[i] instanceof assem.LABEL) {
+                labels.put(((assem.LABEL)code[i]).getLabel(), 0);
+            }
+        }
+        for (int i = 0; i < code.length; i++) {
+            if (!isBranch(code[i])) {
+                position = 0;
+                encode(code, i, false);
+                size[i] = position;
+            }
+        }
+
+        boolean grown = true;
+        while (grown) {
+            int offset = 0;
+            for (int i = 0; i < code.length; i++) {
+                if (code[i] instanceof assem.LABEL) {
+                    labels.put(((assem.LABEL)code[i]).getLabel(), offset);
+                }
+                if (isBranch(code[i])) {
+                    size[i] = branchSize(code, i, near[i]);
+                }
+                offset += size[i];
+            }
+
+            grown = false;
+            offset = 0;
+            for (int i = 0; i < code.length; i++) {
+                offset += size[i];
+                if (isBranch(code[i]) && !near[i] &&
+                    labels.containsKey(code[i].jumps().head)) {
+                    int to = labels.get(code[i].jumps().head);
+                    // The displacement is from the end of the jump itself,
+                    // which is before a possible jmp to the false label:
+                    int end = offset - (size[i] - firstJumpSize(code[i], false));
+                    if (to - end < -128 || to - end > 127) {
+                        near[i] = true;
+                        grown = true;
+                    }
+                }
+            }
+        }
+
+        this.near = near;
+        return size;
+    }
+
+    private int write(List<Instr> instrs, int[] size, ByteBuffer b) {
+        Instr[] code = toArray(instrs);
+        int start = b.position();
+        out = b;
+        position = 0;
+        relocations = new ArrayList<Relocation>();
+
+        for (int i = 0; i < code.length; i++) {
+            int before = position;
+            encode(code, i, near[i]);
+            if (position - before != size[i]) {
+                throw new IllegalStateException("Size of " +
+                    code[i].format(map) + " changed from " + size[i] +
+                    " to " + (position - before));
+            }
+        }
+        out = null;
+        return b.position() - start;
+    }
+
+    private static Instr[] toArray(List<Instr> instrs) {
+        ArrayList<Instr> a = new ArrayList<Instr>();
+        for (List<Instr> l = instrs; l != null; l = l.tail) {
+            a.add(l.head);
+        }
+        return a.toArray(new Instr[a.size()]);
+    }
+
+    /**
+     * A jmp or jcc to a label, whose size depends on the layout.
+     */
+    private boolean isBranch(Instr instr) {
+        if (!(instr instanceof X86Instr)) {
+            return false;
+        }
+        X86Instr x = (X86Instr)instr;
+        Opcode op = x.getOpcode();
+        return (op == Opcode.JMP && x.getDestination() == null) ||
+            op.isConditionalJump();
+    }
+
+    private int branchSize(Instr[] code, int i, boolean near) {
+        int s = firstJumpSize(code[i], near);
+        if (needsFalseJump(code, i)) {
+            s += 5;
+        }
+        return s;
+    }
+
+    private int firstJumpSize(Instr instr, boolean near) {
+        boolean jcc = ((X86Instr)instr).getOpcode().isConditionalJump();
+        if (!labels.containsKey(instr.jumps().head)) {
+            near = true;
+        }
+        if (!near) {
+            return 2;
+        }
+        return jcc ? 6 : 5;
+    }
+
+    /**
+     * A jcc whose false label isn't the next instruction needs a jmp (rel32)
+     * to it; Codegen always puts it next.
+     */
+    private static boolean needsFalseJump(Instr[] code, int i) {
+        if (!((X86Instr)code[i]).getOpcode().isConditionalJump()) {
+            return false;
+        }
+        Label f = code[i].jumps().tail.head;
+        return !(i + 1 < code.length && code[i + 1] instanceof assem.LABEL &&
+            ((assem.LABEL)code[i + 1]).getLabel() == f);
+    }
+
+    /**
+     * Encodes code[i] (only counts its bytes when out is null).
+     */
+    private void encode(Instr[] code, int i, boolean near) {
+        Instr instr = code[i];
+        if (instr instanceof assem.LABEL) {
+            return;
+        }
+        if (instr instanceof assem.MOVE) {
+            // mov r/m32, r32:
+            int d = register(instr.def().head);
+            int s = register(instr.use().head);
+            byte1(0x89);
+            byte1(0xC0 | (s << 3) | d);
+            return;
+        }
+        if (!(instr instanceof X86Instr)) {
+            throw new IllegalArgumentException(
+                "Can't encode " + instr.format(map));
+        }
+
+        X86Instr x = (X86Instr)instr;
+        Opcode op = x.getOpcode();
+        Operand dst = x.getDestination();
+        Operand src = x.getSource();
+
+        switch (op) {
+            case MOV:
+                mov(dst, src);
+                return;
+            case ADD:
+            case OR:
+            case AND:
+            case SUB:
+            case XOR:
+            case CMP:
+                alu(aluCode(op), dst, src);
+                return;
+            case SHL:
+            case SHR:
+            case SAR:
+                shift(op == Opcode.SHL ? 4 : (op == Opcode.SHR ? 5 : 7), dst, src);
+                return;
+            case IMUL:
+                if (src instanceof Operand.Imm) {
+                    int r = register(dst);
+                    int c = imm(src);
+                    byte1(isByte(c) ? 0x6B : 0x69);
+                    modrm(r, dst);
+                    immediate(c, isByte(c));
+                } else {
+                    byte1(0x0F);
+                    byte1(0xAF);
+                    modrm(register(dst), src);
+                }
+                return;
+            case TEST:
+                // test r/m32, r32:
+                byte1(0x85);
+                modrm(register(src), dst);
+                return;
+            case INC:
+                byte1(0x40 + register(dst));
+                return;
+            case DEC:
+                byte1(0x48 + register(dst));
+                return;
+            case NEG:
+                group3(3, dst);
+                return;
+            case MUL:
+                group3(4, dst);
+                return;
+            case WIDE_IMUL:
+                group3(5, dst);
+                return;
+            case DIV:
+                group3(6, dst);
+                return;
+            case IDIV:
+                group3(7, dst);
+                return;
+            case LEA:
+                byte1(0x8D);
+                modrm(register(dst), src);
+                return;
+            case CDQ:
+                byte1(0x99);
+                return;
+            case PUSH:
+                push(dst);
+                return;
+            case CALL:
+                if (dst instanceof Operand.Name) {
+                    byte1(0xE8);
+                    relative(((Operand.Name)dst).label, 4);
+                } else {
+                    byte1(0xFF);
+                    modrm(2, dst);
+                }
+                return;
+            case JMP:
+                if (dst != null) {
+                    byte1(0xFF);
+                    modrm(4, dst);
+                    return;
+                }
+                jump(x.jumps().head, -1, near);
+                return;
+            default:
+                // jcc taken, then the false label when it doesn't follow:
+                jump(x.jumps().head, conditionCode(op), near);
+                if (needsFalseJump(code, i)) {
+                    jump(x.jumps().tail.head, -1, true);
+                }
+        }
+    }
+
+    private void mov(Operand dst, Operand src) {
+        if (dst instanceof Operand.Reg) {
+            int d = register(dst);
+            if (src instanceof Operand.Imm || src instanceof Operand.Name) {
+                // mov r32, imm32:
+                byte1(0xB8 + d);
+                immediateOrName(src);
+            } else if (src instanceof Operand.Reg) {
+                byte1(0x89);
+                modrm(register(src), dst);
+            } else if (d == 0 && isAbsolute(src)) {
+                // mov eax, moffs32:
+                byte1(0xA1);
+                int32((int)((Operand.Mem)src).disp);
+            } else {
+                byte1(0x8B);
+                modrm(d, src);
+            }
+        } else if (src instanceof Operand.Reg) {
+            int s = register(src);
+            if (s == 0 && isAbsolute(dst)) {
+                byte1(0xA3);
+                int32((int)((Operand.Mem)dst).disp);
+            } else {
+                byte1(0x89);
+                modrm(s, dst);
+            }
+        } else {
+            // mov r/m32, imm32:
+            byte1(0xC7);
+            modrm(0, dst);
+            immediateOrName(src);
+        }
+    }
+
+    /**
+     * add/or/and/sub/xor/cmp: "op r/m, r", "op r, r/m" or "op r/m, imm".
+     */
+    private void alu(int code, Operand dst, Operand src) {
+        if (src instanceof Operand.Imm) {
+            int c = imm(src);
+            if (isByte(c)) {
+                byte1(0x83);
+                modrm(code, dst);
+                byte1(c);
+            } else if (dst instanceof Operand.Reg && register(dst) == 0) {
+                byte1((code << 3) | 0x05);
+                int32(c);
+            } else {
+                byte1(0x81);
+                modrm(code, dst);
+                int32(c);
+            }
+        } else if (src instanceof Operand.Reg) {
+            byte1((code << 3) | 0x01);
+            modrm(register(src), dst);
+        } else if (dst instanceof Operand.Reg) {
+            byte1((code << 3) | 0x03);
+            modrm(register(dst), src);
+        } else {
+            throw new IllegalArgumentException("Two memory operands");
+        }
+    }
+
+    private static int aluCode(Opcode op) {
+        switch (op) {
+            case ADD: return 0;
+            case OR:  return 1;
+            case AND: return 4;
+            case SUB: return 5;
+            case XOR: return 6;
+            default:  return 7;
+        }
+    }
+
+    private void shift(int code, Operand dst, Operand src) {
+        if (src instanceof Operand.Imm) {
+            int c = imm(src) & 31;
+            if (c == 1) {
+                byte1(0xD1);
+                modrm(code, dst);
+            } else {
+                byte1(0xC1);
+                modrm(code, dst);
+                byte1(c);
+            }
+        } else if (register(src) == 1) {
+            // By CL:
+            byte1(0xD3);
+            modrm(code, dst);
+        } else {
+            throw new IllegalArgumentException("Shift count must be in ecx");
+        }
+    }
+
+    /**
+     * neg, mul, imul, div and idiv: F7 /code.
+     */
+    private void group3(int code, Operand o) {
+        byte1(0xF7);
+        modrm(code, o);
+    }
+
+    private void push(Operand o) {
+        if (o instanceof Operand.Reg) {
+            byte1(0x50 + register(o));
+        } else if (o instanceof Operand.Imm && isByte(imm(o))) {
+            byte1(0x6A);
+            byte1(imm(o));
+        } else if (o instanceof Operand.Imm || o instanceof Operand.Name) {
+            byte1(0x68);
+            immediateOrName(o);
+        } else {
+            byte1(0xFF);
+            modrm(6, o);
+        }
+    }
+
+    /**
+     * jmp (cc < 0) or jcc to l: rel8 unless near, rel32 to labels outside
+     * the method.
+     */
+    private void jump(Label l, int cc, boolean near) {
+        if (!labels.containsKey(l)) {
+            near = true;
+        }
+        if (!near) {
+            byte1(cc < 0 ? 0xEB : 0x70 + cc);
+            int to = labels.get(l);
+            byte1(to - (position + 1));
+            return;
+        }
+        if (cc < 0) {
+            byte1(0xE9);
+        } else {
+            byte1(0x0F);
+            byte1(0x80 + cc);
+        }
+        relative(l, 4);
+    }
+
+    private static int conditionCode(Opcode op) {
+        switch (op) {
+            case JB:  return 0x2;
+            case JAE: return 0x3;
+            case JZ:  return 0x4;
+            case JNZ: return 0x5;
+            case JBE: return 0x6;
+            case JA:  return 0x7;
+            case JL:  return 0xC;
+            case JGE: return 0xD;
+            case JLE: return 0xE;
+            case JG:  return 0xF;
+        }
+        throw new IllegalArgumentException(op + " is not a conditional jump");
+    }
+
+    /**
+     * A rel32 field to l, ending size bytes from here.
+     */
+    private void relative(Label l, int size) {
+        Integer to = labels.get(l);
+        if (to != null) {
+            int32(to - (position + size));
+        } else {
+            relocation(l, true);
+            int32(-size);
+        }
+    }
+
+    private void immediateOrName(Operand o) {
+        if (o instanceof Operand.Name) {
+            Label l = ((Operand.Name)o).label;
+            relocation(l, false);
+            Integer to = labels.get(l);
+            int32(to == null ? 0 : to);
+        } else {
+            int32(imm(o));
+        }
+    }
+
+    private void immediate(int c, boolean isByte) {
+        if (isByte) {
+            byte1(c);
+        } else {
+            int32(c);
+        }
+    }
+
+    private void relocation(Label l, boolean relative) {
+        if (out != null) {
+            relocations.add(new Relocation(position, l, relative));
+        }
+    }
+
+    /**
+     * ModRM (and SIB and displacement) for the register or memory operand
+     * o, with reg in the reg field.
+     */
+    private void modrm(int reg, Operand o) {
+        if (o instanceof Operand.Reg) {
+            byte1(0xC0 | (reg << 3) | register(o));
+            return;
+        }
+        if (!(o instanceof Operand.Mem)) {
+            throw new IllegalArgumentException("Not a register or memory operand");
+        }
+
+        Operand.Mem m = (Operand.Mem)o;
+        int disp = (int)m.disp;
+        if (m.base == null) {
+            if (m.index == null) {
+                // [disp32]:
+                byte1((reg << 3) | 0x05);
+            } else {
+                // [index*scale + disp32]:
+                byte1((reg << 3) | 0x04);
+                byte1((scale(m.scale) << 6) | (register(m.index) << 3) | EBP);
+            }
+            int32(disp);
+            return;
+        }
+
+        int base = register(m.base);
+        int mod;
+        if (disp == 0 && base != EBP) {
+            mod = 0;
+        } else if (isByte(disp)) {
+            mod = 1;
+        } else {
+            mod = 2;
+        }
+
+        if (m.index == null && base != ESP) {
+            byte1((mod << 6) | (reg << 3) | base);
+        } else {
+            int index = (m.index == null) ? ESP : register(m.index);
+            if (index == ESP && m.index != null) {
+                throw new IllegalArgumentException("esp can't be an index");
+            }
+            byte1((mod << 6) | (reg << 3) | 0x04);
+            byte1((scale(m.scale) << 6) | (index << 3) | base);
+        }
+        if (mod == 1) {
+            byte1(disp);
+        } else if (mod == 2) {
+            int32(disp);
+        }
+    }
+
+    private static int scale(int s) {
+        switch (s) {
+            case 1: return 0;
+            case 2: return 1;
+            case 4: return 2;
+            case 8: return 3;
+        }
+        throw new IllegalArgumentException("Scale " + s);
+    }
+
+    private static boolean isAbsolute(Operand o) {
+        return o instanceof Operand.Mem && ((Operand.Mem)o).base == null &&
+            ((Operand.Mem)o).index == null;
+    }
+
+    private static boolean isByte(int c) {
+        return c >= -128 && c <= 127;
+    }
+
+    private static int imm(Operand o) {
+        return (int)((Operand.Imm)o).value;
+    }
+
+    private int register(Operand o) {
+        return register(((Operand.Reg)o).temp);
+    }
+
+    private int register(Temp t) {
+        Integer r = registers.get(t);
+        if (r == null) {
+            String name = map.tempMap(t);
+            for (int i = 0; i < REGISTERS.length && r == null; i++) {
+                if (REGISTERS[i].equals(name)) {
+                    r = i;
+                }
+            }
+            if (r == null) {
+                throw new IllegalArgumentException(t + " has no register");
+            }
+            registers.put(t, r);
+        }
+        return r;
+    }
+
+    private void byte1(int b) {
+        if (out != null) {
+            out.put((byte)b);
+        }
+        position++;
+    }
+
+    private void int32(int v) {
+        byte1(v);
+        byte1(v >> 8);
+        byte1(v >> 16);
+        byte1(v >> 24);
+    }
+}
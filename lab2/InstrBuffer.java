@@ -0,0 +1,55 @@
+package x86;
+
+import assem.Instr;
+import util.List;
+
+/**
+ * Sequence of instructions with O(1) append.
+ *     The instructions are linked as they are added into the util.List
+ * returned by toList(), one cell each, so handing the result on copies
+ * nothing. reset() starts a new list, so one buffer serves every method a
+ * Codegen selects.
+ */
+public final class InstrBuffer {
+
+    private List<Instr> first, last;
+    private int size;
+
+    public void add(Instr inst) {
+        List<Instr> cell = new List<Instr>(inst, null);
+        if (last != null) {
+            last = last.tail = cell;
+        } else {
+            first = last = cell;
+        }
+        size++;
+    }
+
+    public void addAll(List<Instr> l) {
+        for (; l != null; l = l.tail) {
+            add(l.head);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The instructions added since the last reset(), as a list that later
+     * adds keep extending (null when empty).
+     *
+     * @return
+     */
+    public List<Instr> toList() {
+        return first;
+    }
+
+    /**
+     * Empties the buffer; lists returned by toList() are left as they are.
+     */
+    public void reset() {
+        size = 0;
+        first = last = null;
+    }
+}
@@ -0,0 +1,152 @@
+package x86;
+
+import tree.BINOP;
+import tree.CJUMP;
+
+/**
+ * x86 instruction opcodes emitted by the code generator.
+ */
+public enum Opcode {
+    MOV("mov"),
+    ADD("add"),
+    SUB("sub"),
+    AND("and"),
+    OR("or"),
+    XOR("xor"),
+    SHL("shl"),
+    SHR("shr"),
+    SAR("sar"),
+    IMUL("imul"),
+    NEG("neg"),
+    INC("inc"),
+    DEC("dec"),
+    LEA("lea"),
+    MUL("mul"),
+    WIDE_IMUL("imul"),
+    DIV("div"),
+    IDIV("idiv"),
+    CDQ("cdq"),
+    CMP("cmp"),
+    TEST("test"),
+    PUSH("push"),
+    CALL("call"),
+    JMP("jmp"),
+    JZ("jz"),
+    JNZ("jnz"),
+    JL("jl"),
+    JLE("jle"),
+    JG("jg"),
+    JGE("jge"),
+    JB("jb"),
+    JBE("jbe"),
+    JA("ja"),
+    JAE("jae");
+
+    private final String mnemonic;
+
+    Opcode(String mnemonic) {
+        this.mnemonic = mnemonic;
+    }
+
+    public String getMnemonic() {
+        return mnemonic;
+    }
+
+    public boolean isConditionalJump() {
+        return compareTo(JZ) >= 0 && compareTo(JAE) <= 0;
+    }
+
+    /**
+     * Two-operand arithmetic and logic instructions: "op dst, src" computes
+     * dst <- dst op src (IMUL is the two-operand "imul r, r/m" form).
+     */
+    public boolean isArithmetic() {
+        return compareTo(ADD) >= 0 && compareTo(IMUL) <= 0;
+    }
+
+    /**
+     * Whether the second operand may be an immediate: "mov", "cmp" and the
+     * two-operand arithmetic (not "test", "lea" or the one-operand forms).
+     */
+    public boolean takesImmediateSource() {
+        return this == MOV || this == CMP || isArithmetic();
+    }
+
+    /**
+     * Whether a register in the first operand is written. The one-operand
+     * MUL, WIDE_IMUL, DIV and IDIV write EDX:EAX, not their operand.
+     */
+    public boolean writesDestination() {
+        return this == MOV || this == NEG || this == INC || this == DEC ||
+            this == LEA || isArithmetic();
+    }
+
+    /**
+     * Whether a register in the first operand is read.
+     */
+    public boolean readsDestination() {
+        return this != MOV && this != LEA;
+    }
+
+    /**
+     * Returns the conditional jump taken in the opposite cases.
+     */
+    public Opcode negate() {
+        switch (this) {
+            case JZ:  return JNZ;
+            case JNZ: return JZ;
+            case JL:  return JGE;
+            case JGE: return JL;
+            case JLE: return JG;
+            case JG:  return JLE;
+            case JB:  return JAE;
+            case JAE: return JB;
+            case JBE: return JA;
+            case JA:  return JBE;
+        }
+        throw new IllegalArgumentException(this + " is not a conditional jump");
+    }
+
+    /**
+     * Returns the conditional jump for a Tree.Stm.CJUMP relational operator.
+     *
+     * @param op
+     * @return
+     */
+    public static Opcode jump(int op) {
+        switch (op) {
+            case CJUMP.EQ:  return JZ;
+            case CJUMP.NE:  return JNZ;
+            case CJUMP.LT:  return JL;
+            case CJUMP.LE:  return JLE;
+            case CJUMP.GT:  return JG;
+            case CJUMP.GE:  return JGE;
+            case CJUMP.ULT: return JB;
+            case CJUMP.ULE: return JBE;
+            case CJUMP.UGT: return JA;
+            case CJUMP.UGE: return JAE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the two-operand instruction for a Tree.Exp.BINOP operator, or
+     * null for TIMES and DIV.
+     *
+     * @param op
+     * @return
+     */
+    public static Opcode arithmetic(int op) {
+        switch (op) {
+            case BINOP.AND:     return AND;
+            case BINOP.ARSHIFT: return SAR;
+            case BINOP.LSHIFT:  return SHL;
+            case BINOP.MINUS:   return SUB;
+            case BINOP.OR:      return OR;
+            case BINOP.PLUS:    return ADD;
+            case BINOP.RSHIFT:  return SHR;
+            case BINOP.XOR:     return XOR;
+        }
+        return null;
+    }
+}
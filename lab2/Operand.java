@@ -0,0 +1,98 @@
+package x86;
+
+import temp.Label;
+import temp.Temp;
+
+/**
+ * Operand of an x86 instruction: a register, an immediate, a memory
+ * reference [base + index*scale + disp] or a symbol.
+ * Operands are immutable; passes rewrite an instruction by replacing them.
+ */
+public abstract class Operand {
+
+    /**
+     * Register (temporary) operand.
+     */
+    public static class Reg extends Operand {
+        public final Temp temp;
+
+        Reg(Temp temp) {
+            this.temp = temp;
+        }
+    }
+
+    /**
+     * Immediate operand.
+     */
+    public static class Imm extends Operand {
+        public final long value;
+
+        Imm(long value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Memory operand [base + index*scale + disp]. Either register may be
+     * null: [index*scale + disp] has no base, and with neither it is the
+     * absolute address [disp].
+     */
+    public static class Mem extends Operand {
+        public final Temp base;
+        public final Temp index;
+        public final int scale;
+        public final long disp;
+
+        Mem(Temp base, Temp index, int scale, long disp) {
+            this.base = base;
+            this.index = index;
+            this.scale = scale;
+            this.disp = disp;
+        }
+    }
+
+    /**
+     * Symbolic operand (the address of a label).
+     */
+    public static class Name extends Operand {
+        public final Label label;
+
+        Name(Label label) {
+            this.label = label;
+        }
+    }
+
+    public static Reg reg(Temp t) {
+        return new Reg(t);
+    }
+
+    public static Imm imm(long c) {
+        return new Imm(c);
+    }
+
+    public static Mem mem(Temp base, long disp) {
+        return new Mem(base, null, 1, disp);
+    }
+
+    public static Mem mem(Temp base, Temp index, int scale, long disp) {
+        return new Mem(base, index, scale, disp);
+    }
+
+    public static Name name(Label l) {
+        return new Name(l);
+    }
+
+    /**
+     * Returns the temporary of a register operand, or null.
+     */
+    public static Temp temp(Operand o) {
+        return (o instanceof Reg) ? ((Reg)o).temp : null;
+    }
+
+    /**
+     * Whether o is the immediate c.
+     */
+    public static boolean isImm(Operand o, long c) {
+        return (o instanceof Imm) && ((Imm)o).value == c;
+    }
+}
@@ -0,0 +1,518 @@
+package x86;
+
+import static x86.Burs.*;
+
+import java.util.ArrayList;
+
+import temp.Label;
+import temp.Temp;
+import tree.BINOP;
+import tree.CJUMP;
+import tree.NAME;
+import tree.TEMP;
+import util.List;
+
+/**
+ * Rule table of the instruction selector (see Burs). The cost of a rule is
+ * the number of instructions it emits; the values of the nonterminals are:
+ *     STM     nothing (null)
+ *     REG     the Temp holding the value
+ *     IMM     an Operand.Imm
+ *     MEM     an Operand.Mem to access
+ *     ADDR    an Operand.Mem [base + index*scale + disp] computing the value
+ *     INDEX   an Operand.Mem [index*scale]
+ *     CALLEE  an Operand to call
+ *     ARGS    the List<Operand> of the arguments (see Codegen.argument)
+ * Ties go to the rule that comes first.
+ */
+final class Rules {
+
+    static final Rule[] TABLE = table();
+
+    private Rules() {
+    }
+
+    private static Rule[] table() {
+        ArrayList<Rule> t = new ArrayList<Rule>();
+        leaves(t);
+        addresses(t);
+        arithmetic(t);
+        multiplication(t);
+        calls(t);
+        statements(t);
+        return t.toArray(new Rule[t.size()]);
+    }
+
+    /**
+     * REG <- TEMP | IMM | NAME | MEM, IMM <- CONST, MEM <- MEM(ADDR).
+     */
+    private static void leaves(ArrayList<Rule> t) {
+        t.add(new Rule(REG, op(TEMP_), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return ((TEMP)n.tree).getTemp();
+            }
+        });
+        t.add(new Rule(IMM, op(CONST_), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return Operand.imm(n.value());
+            }
+        });
+        t.add(new Rule(REG, nt(IMM), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Temp r = new Temp();
+                g.emit(new X86Instr(Opcode.MOV, Operand.reg(r), (Operand)k[0]));
+                return r;
+            }
+        });
+        t.add(new Rule(REG, op(NAME_), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Temp r = new Temp();
+                g.emit(new X86Instr(Opcode.MOV, Operand.reg(r), name(n)));
+                return r;
+            }
+        });
+        t.add(new Rule(MEM, op(MEM_, nt(ADDR)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return k[0];
+            }
+        });
+        t.add(new Rule(REG, nt(MEM), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Temp r = new Temp();
+                g.emit(new X86Instr(Opcode.MOV, Operand.reg(r), (Operand)k[0]));
+                return r;
+            }
+        });
+    }
+
+    /**
+     * ADDR <- [base + index*scale + disp], with the terms in either order
+     * and the constants outermost (as ConstFolding leaves them), and
+     * REG <- ADDR with lea (a three-operand add, or multiply by 2, 4, 8).
+     */
+    private static void addresses(ArrayList<Rule> t) {
+        t.add(new Rule(ADDR, nt(REG), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return Operand.mem((Temp)k[0], 0);
+            }
+        });
+        t.add(new Rule(ADDR, nt(IMM), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return Operand.mem(null, null, 1, ((Operand.Imm)k[0]).value);
+            }
+        });
+
+        // INDEX <- TIMES(REG, 1|2|4|8) | TIMES(1|2|4|8, REG) | LSHIFT(REG, 0..3):
+        t.add(new Rule(INDEX, op(BINOP.TIMES, nt(REG), nt(IMM)), 0) {
+            int cost(Node n) {
+                return isScale(n.kids[1].value()) ? 0 : INFINITE;
+            }
+
+            Object emit(Codegen g, Node n, Object[] k) {
+                return index((Temp)k[0], n.kids[1].value());
+            }
+        });
+        t.add(new Rule(INDEX, op(BINOP.TIMES, nt(IMM), nt(REG)), 0) {
+            int cost(Node n) {
+                return isScale(n.kids[0].value()) ? 0 : INFINITE;
+            }
+
+            Object emit(Codegen g, Node n, Object[] k) {
+                return index((Temp)k[1], n.kids[0].value());
+            }
+        });
+        t.add(new Rule(INDEX, op(BINOP.LSHIFT, nt(REG), nt(IMM)), 0) {
+            int cost(Node n) {
+                long c = n.kids[1].value();
+                return (c >= 0 && c <= 3) ? 0 : INFINITE;
+            }
+
+            Object emit(Codegen g, Node n, Object[] k) {
+                return index((Temp)k[0], 1 << n.kids[1].value());
+            }
+        });
+        t.add(new Rule(ADDR, nt(INDEX), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return k[0];
+            }
+        });
+
+        // ADDR <- PLUS(REG, REG) | PLUS(REG, INDEX) | PLUS(INDEX, REG):
+        t.add(new Rule(ADDR, op(BINOP.PLUS, nt(REG), nt(REG)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return Operand.mem((Temp)k[0], (Temp)k[1], 1, 0);
+            }
+        });
+        t.add(new Rule(ADDR, op(BINOP.PLUS, nt(REG), nt(INDEX)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Operand.Mem i = (Operand.Mem)k[1];
+                return Operand.mem((Temp)k[0], i.index, i.scale, 0);
+            }
+        });
+        t.add(new Rule(ADDR, op(BINOP.PLUS, nt(INDEX), nt(REG)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Operand.Mem i = (Operand.Mem)k[0];
+                return Operand.mem((Temp)k[1], i.index, i.scale, 0);
+            }
+        });
+
+        // ADDR <- PLUS(ADDR, IMM) | PLUS(IMM, ADDR) | MINUS(ADDR, IMM):
+        t.add(new Rule(ADDR, op(BINOP.PLUS, nt(ADDR), nt(IMM)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return displace((Operand.Mem)k[0], ((Operand.Imm)k[1]).value);
+            }
+        });
+        t.add(new Rule(ADDR, op(BINOP.PLUS, nt(IMM), nt(ADDR)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return displace((Operand.Mem)k[1], ((Operand.Imm)k[0]).value);
+            }
+        });
+        t.add(new Rule(ADDR, op(BINOP.MINUS, nt(ADDR), nt(IMM)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return displace((Operand.Mem)k[0], -((Operand.Imm)k[1]).value);
+            }
+        });
+
+        t.add(new Rule(REG, nt(ADDR), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Temp r = new Temp();
+                g.emit(new X86Instr(Opcode.LEA, Operand.reg(r), (Operand)k[0]));
+                return r;
+            }
+        });
+    }
+
+    /**
+     * REG <- op(REG, REG | IMM | MEM) and op(IMM, REG), as "mov r, left" and
+     * "op r, right" (no memory operand for the shift count, and a count in
+     * a register goes through ECX, see Codegen.shift).
+     */
+    private static void arithmetic(ArrayList<Rule> t) {
+        int[] ops = {
+            BINOP.PLUS, BINOP.MINUS, BINOP.AND, BINOP.OR, BINOP.XOR,
+            BINOP.LSHIFT, BINOP.RSHIFT, BINOP.ARSHIFT
+        };
+        for (int operator : ops) {
+            final Opcode inst = Opcode.arithmetic(operator);
+            if (operator == BINOP.LSHIFT || operator == BINOP.RSHIFT ||
+                operator == BINOP.ARSHIFT) {
+                t.add(new Rule(REG, op(operator, nt(REG), nt(REG)), 3) {
+                    Object emit(Codegen g, Node n, Object[] k) {
+                        return g.shift(inst, Operand.reg((Temp)k[0]), (Temp)k[1]);
+                    }
+                });
+                t.add(new Rule(REG, op(operator, nt(REG), nt(IMM)), 2) {
+                    Object emit(Codegen g, Node n, Object[] k) {
+                        return twoAddress(g, inst, (Temp)k[0], (Operand)k[1]);
+                    }
+                });
+                t.add(new Rule(REG, op(operator, nt(IMM), nt(REG)), 3) {
+                    Object emit(Codegen g, Node n, Object[] k) {
+                        return g.shift(inst, (Operand)k[0], (Temp)k[1]);
+                    }
+                });
+                continue;
+            }
+            t.add(new Rule(REG, op(operator, nt(REG), nt(REG)), 2) {
+                Object emit(Codegen g, Node n, Object[] k) {
+                    return twoAddress(g, inst, (Temp)k[0], Operand.reg((Temp)k[1]));
+                }
+            });
+            t.add(new Rule(REG, op(operator, nt(REG), nt(IMM)), 2) {
+                Object emit(Codegen g, Node n, Object[] k) {
+                    return twoAddress(g, inst, (Temp)k[0], (Operand)k[1]);
+                }
+            });
+            t.add(new Rule(REG, op(operator, nt(IMM), nt(REG)), 2) {
+                Object emit(Codegen g, Node n, Object[] k) {
+                    Temp r = new Temp();
+                    g.emit(new X86Instr(Opcode.MOV, Operand.reg(r), (Operand)k[0]));
+                    g.emit(new X86Instr(inst, Operand.reg(r), Operand.reg((Temp)k[1])));
+                    return r;
+                }
+            });
+            t.add(new Rule(REG, op(operator, nt(REG), nt(MEM)), 2) {
+                Object emit(Codegen g, Node n, Object[] k) {
+                    return twoAddress(g, inst, (Temp)k[0], (Operand)k[1]);
+                }
+            });
+        }
+    }
+
+    /**
+     * TIMES with a constant is strength reduced (Codegen.multiply), other
+     * ones use the two-operand imul; DIV by a constant multiplies by its
+     * magic number (Codegen.divide), other ones use cdq and idiv.
+     */
+    private static void multiplication(ArrayList<Rule> t) {
+        t.add(new Rule(REG, op(BINOP.TIMES, nt(REG), nt(IMM)), 0) {
+            int cost(Node n) {
+                return Codegen.multiplyCost((int)n.kids[1].value());
+            }
+
+            Object emit(Codegen g, Node n, Object[] k) {
+                return g.multiply((Temp)k[0], (int)n.kids[1].value());
+            }
+        });
+        t.add(new Rule(REG, op(BINOP.TIMES, nt(IMM), nt(REG)), 0) {
+            int cost(Node n) {
+                return Codegen.multiplyCost((int)n.kids[0].value());
+            }
+
+            Object emit(Codegen g, Node n, Object[] k) {
+                return g.multiply((Temp)k[1], (int)n.kids[0].value());
+            }
+        });
+        t.add(new Rule(REG, op(BINOP.TIMES, nt(REG), nt(REG)), 2) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return twoAddress(g, Opcode.IMUL, (Temp)k[0], Operand.reg((Temp)k[1]));
+            }
+        });
+        t.add(new Rule(REG, op(BINOP.TIMES, nt(REG), nt(MEM)), 2) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return twoAddress(g, Opcode.IMUL, (Temp)k[0], (Operand)k[1]);
+            }
+        });
+
+        t.add(new Rule(REG, op(BINOP.DIV, nt(REG), nt(IMM)), 0) {
+            int cost(Node n) {
+                int d = (int)n.kids[1].value();
+                if (d == 0 || d == Integer.MIN_VALUE) {
+                    return INFINITE;
+                }
+                return Codegen.divideCost(d);
+            }
+
+            Object emit(Codegen g, Node n, Object[] k) {
+                return g.divide((Temp)k[0], (int)n.kids[1].value());
+            }
+        });
+        t.add(new Rule(REG, op(BINOP.DIV, nt(REG), nt(REG)), 4) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return g.idiv((Temp)k[0], Operand.reg((Temp)k[1]));
+            }
+        });
+        t.add(new Rule(REG, op(BINOP.DIV, nt(REG), nt(MEM)), 4) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return g.idiv((Temp)k[0], (Operand)k[1]);
+            }
+        });
+    }
+
+    /**
+     * REG <- CALL(CALLEE, ARGS): the arguments are evaluated last to first
+     * and passed as Codegen.call chooses, the result is in RV; ESEQ(STM,
+     * REG).
+     */
+    private static void calls(ArrayList<Rule> t) {
+        t.add(new Rule(CALLEE, op(NAME_), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return name(n);
+            }
+        });
+        t.add(new Rule(CALLEE, nt(MEM), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return k[0];
+            }
+        });
+        t.add(new Rule(CALLEE, nt(REG), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return Operand.reg((Temp)k[0]);
+            }
+        });
+
+        t.add(new Rule(ARGS, op(NOARGS_), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return null;
+            }
+        });
+        t.add(new Push(op(ARGLIST_, nt(IMM), nt(ARGS))));
+        t.add(new Push(op(ARGLIST_, op(NAME_), nt(ARGS))) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return push(g, name(n.kids[0]), k[0]);
+            }
+        });
+        t.add(new Push(op(ARGLIST_, nt(MEM), nt(ARGS))));
+        t.add(new Push(op(ARGLIST_, nt(REG), nt(ARGS))) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return push(g, Operand.reg((Temp)k[0]), k[1]);
+            }
+        });
+
+        t.add(new Rule(REG, op(CALL_, nt(CALLEE), nt(ARGS)), 1) {
+            int cost(Node n) {
+                return (n.kids[1].op == NOARGS_) ? 1 : 2;
+            }
+
+            @SuppressWarnings("unchecked")
+            Object emit(Codegen g, Node n, Object[] k) {
+                return g.call((Operand)k[0], (List<Operand>)k[1]);
+            }
+        });
+
+        t.add(new Rule(REG, op(ESEQ_, nt(STM), nt(REG)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return k[1];
+            }
+        });
+    }
+
+    /**
+     * ARGS <- ARGLIST(operand, ARGS): passes operand (with "push operand"
+     * unless there is an outgoing area), after the following arguments.
+     */
+    private static class Push extends Rule {
+        Push(Pattern p) {
+            super(ARGS, p, 1);
+        }
+
+        boolean rightToLeft() {
+            return true;
+        }
+
+        Object emit(Codegen g, Node n, Object[] k) {
+            return push(g, (Operand)k[0], k[1]);
+        }
+
+        @SuppressWarnings("unchecked")
+        static Object push(Codegen g, Operand source, Object rest) {
+            return g.argument(source, (List<Operand>)rest);
+        }
+    }
+
+    private static void statements(ArrayList<Rule> t) {
+        // MOVE(TEMP, REG | IMM | MEM | NAME | ADDR):
+        t.add(new Rule(STM, op(MOVE_, op(TEMP_), nt(REG)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                g.emit(new assem.MOVE(temp(n.kids[0]), (Temp)k[0]));
+                return null;
+            }
+        });
+        t.add(new Rule(STM, op(MOVE_, op(TEMP_), nt(IMM)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return mov(g, Operand.reg(temp(n.kids[0])), (Operand)k[0]);
+            }
+        });
+        t.add(new Rule(STM, op(MOVE_, op(TEMP_), nt(MEM)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return mov(g, Operand.reg(temp(n.kids[0])), (Operand)k[0]);
+            }
+        });
+        t.add(new Rule(STM, op(MOVE_, op(TEMP_), op(NAME_)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return mov(g, Operand.reg(temp(n.kids[0])), name(n.kids[1]));
+            }
+        });
+        t.add(new Rule(STM, op(MOVE_, op(TEMP_), nt(ADDR)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                g.emit(new X86Instr(
+                    Opcode.LEA,
+                    Operand.reg(temp(n.kids[0])),
+                    (Operand)k[0]
+                ));
+                return null;
+            }
+        });
+
+        // MOVE(MEM, REG | IMM):
+        t.add(new Rule(STM, op(MOVE_, nt(MEM), nt(REG)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return mov(g, (Operand)k[0], Operand.reg((Temp)k[1]));
+            }
+        });
+        t.add(new Rule(STM, op(MOVE_, nt(MEM), nt(IMM)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return mov(g, (Operand)k[0], (Operand)k[1]);
+            }
+        });
+
+        t.add(new Rule(STM, op(EXPSTM_, nt(REG)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return null;
+            }
+        });
+        t.add(new Rule(STM, op(SEQ_, nt(STM), nt(STM)), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                return null;
+            }
+        });
+        t.add(new Rule(STM, op(LABEL_), 0) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Label l = ((tree.LABEL)n.tree).getLabel();
+                g.emit(new assem.LABEL(l.toString() + ":", l));
+                return null;
+            }
+        });
+
+        // JUMP(NAME) (nothing when it goes to the next statement), JUMP(REG):
+        t.add(new Rule(STM, op(JUMP_, op(NAME_)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                Label l = ((NAME)n.kids[0].tree).getLabel();
+                if (l != g.fallThrough) {
+                    g.emit(new X86Instr(Opcode.JMP, new List<Label>(l, null)));
+                }
+                return null;
+            }
+        });
+        t.add(new Rule(STM, op(JUMP_, nt(REG)), 1) {
+            Object emit(Codegen g, Node n, Object[] k) {
+                g.emit(new X86Instr(
+                    Opcode.JMP,
+                    Operand.reg((Temp)k[0]),
+                    null,
+                    null,
+                    null,
+                    ((tree.JUMP)n.tree).getTargets()
+                ));
+                return null;
+            }
+        });
+
+        // CJUMP(REG, REG | IMM | MEM) and CJUMP(MEM, REG | IMM):
+        int[][] operands = {{REG, REG}, {REG, IMM}, {REG, MEM}, {MEM, REG}, {MEM, IMM}};
+        for (final int[] o : operands) {
+            t.add(new Rule(STM, op(CJUMP_, nt(o[0]), nt(o[1])), 2) {
+                Object emit(Codegen g, Node n, Object[] k) {
+                    g.cjump((CJUMP)n.tree, operand(o[0], k[0]), operand(o[1], k[1]));
+                    return null;
+                }
+            });
+        }
+    }
+
+    private static Object twoAddress(Codegen g, Opcode inst, Temp left, Operand right) {
+        Temp r = new Temp();
+        g.emit(new assem.MOVE(r, left));
+        g.emit(new X86Instr(inst, Operand.reg(r), right));
+        return r;
+    }
+
+    private static Object mov(Codegen g, Operand dst, Operand src) {
+        g.emit(new X86Instr(Opcode.MOV, dst, src));
+        return null;
+    }
+
+    private static Operand operand(int nt, Object value) {
+        return (nt == REG) ? Operand.reg((Temp)value) : (Operand)value;
+    }
+
+    private static Operand.Name name(Node n) {
+        return Operand.name(((NAME)n.tree).getLabel());
+    }
+
+    private static Temp temp(Node n) {
+        return ((TEMP)n.tree).getTemp();
+    }
+
+    private static boolean isScale(long c) {
+        return c == 1 || c == 2 || c == 4 || c == 8;
+    }
+
+    private static Operand.Mem index(Temp index, long scale) {
+        return Operand.mem(null, index, (int)scale, 0);
+    }
+
+    private static Operand.Mem displace(Operand.Mem m, long c) {
+        return Operand.mem(m.base, m.index, m.scale, m.disp + c);
+    }
+}
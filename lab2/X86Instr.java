@@ -0,0 +1,342 @@
+package x86;
+
+import assem.OPER;
+import temp.Label;
+import temp.Temp;
+import temp.TempMap;
+import util.List;
+
+/**
+ * Structured x86 instruction: an opcode and up to two typed operands, plus
+ * the registers it defines or uses implicitly (EAX/EDX for mul, the stack
+ * pointer for push...).
+ *     The def/use lists are derived from the operands and the assembly text
+ * (with `d/`u/`j placeholders) is only rendered when asked for, so passes
+ * can rewrite operands without ever parsing or building strings. As for any
+ * OPER, setAssembly() only changes the text (until the operands change).
+ */
+public class X86Instr extends OPER {
+
+    private Opcode opcode;
+    private Operand dst;
+    private Operand src;
+    private List<Temp> implicitDefs;
+    private List<Temp> implicitUses;
+    private List<Label> targets;
+
+    // Derived from the fields above, rebuilt after every change (the text
+    // goes to the inherited assembly field):
+    private List<Temp> defs;
+    private List<Temp> uses;
+    private boolean valid;
+
+    public X86Instr(Opcode opcode, Operand dst, Operand src,
+        List<Temp> implicitDefs, List<Temp> implicitUses,
+        List<Label> targets) {
+        super(null, null, null, targets);
+        this.opcode = opcode;
+        this.dst = dst;
+        this.src = src;
+        this.implicitDefs = implicitDefs;
+        this.implicitUses = implicitUses;
+        this.targets = targets;
+    }
+
+    public X86Instr(Opcode opcode, Operand dst, Operand src,
+        List<Temp> implicitDefs, List<Temp> implicitUses) {
+        this(opcode, dst, src, implicitDefs, implicitUses, null);
+    }
+
+    public X86Instr(Opcode opcode, Operand dst, Operand src) {
+        this(opcode, dst, src, null, null, null);
+    }
+
+    public X86Instr(Opcode opcode, Operand dst) {
+        this(opcode, dst, null, null, null, null);
+    }
+
+    /**
+     * Jump to one of the given labels.
+     *
+     * @param opcode
+     * @param targets
+     */
+    public X86Instr(Opcode opcode, List<Label> targets) {
+        this(opcode, null, null, null, null, targets);
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public Operand getDestination() {
+        return dst;
+    }
+
+    public Operand getSource() {
+        return src;
+    }
+
+    public List<Temp> getImplicitDefs() {
+        return implicitDefs;
+    }
+
+    public List<Temp> getImplicitUses() {
+        return implicitUses;
+    }
+
+    public void setOpcode(Opcode opcode) {
+        this.opcode = opcode;
+        valid = false;
+    }
+
+    public void setDestination(Operand dst) {
+        this.dst = dst;
+        valid = false;
+    }
+
+    public void setSource(Operand src) {
+        this.src = src;
+        valid = false;
+    }
+
+    public void setTargets(List<Label> targets) {
+        this.targets = targets;
+        valid = false;
+    }
+
+    /**
+     * Replaces every occurrence of the temporary from by to, in the operands
+     * as well as in the implicit defs and uses.
+     *
+     * @param from
+     * @param to
+     */
+    public void replaceTemp(Temp from, Temp to) {
+        dst = replace(dst, from, to);
+        src = replace(src, from, to);
+        implicitDefs = replace(implicitDefs, from, to);
+        implicitUses = replace(implicitUses, from, to);
+        valid = false;
+    }
+
+    /**
+     * Replaces the temporary from by to where it is only read: in the
+     * source, in a memory destination or in a register destination the
+     * opcode doesn't write. The implicit uses are left as they are.
+     *
+     * @param from
+     * @param to
+     * @return true if an operand changed
+     */
+    public boolean replaceUse(Temp from, Temp to) {
+        Operand d = dst;
+        if (!(dst instanceof Operand.Reg && opcode.writesDestination())) {
+            d = replace(dst, from, to);
+        }
+        Operand s = replace(src, from, to);
+        if (d == dst && s == src) {
+            return false;
+        }
+        dst = d;
+        src = s;
+        valid = false;
+        return true;
+    }
+
+    private static Operand replace(Operand o, Temp from, Temp to) {
+        if (o instanceof Operand.Reg && ((Operand.Reg)o).temp.equals(from)) {
+            return Operand.reg(to);
+        }
+        if (o instanceof Operand.Mem) {
+            Operand.Mem m = (Operand.Mem)o;
+            if (from.equals(m.base) || from.equals(m.index)) {
+                return Operand.mem(
+                    from.equals(m.base) ? to : m.base,
+                    from.equals(m.index) ? to : m.index,
+                    m.scale,
+                    m.disp
+                );
+            }
+        }
+        return o;
+    }
+
+    private static List<Temp> replace(List<Temp> l, Temp from, Temp to) {
+        if (l == null) {
+            return null;
+        }
+        return new List<Temp>(
+            l.head.equals(from) ? to : l.head,
+            replace(l.tail, from, to)
+        );
+    }
+
+    @Override
+    public List<Temp> def() {
+        build();
+        return defs;
+    }
+
+    @Override
+    public List<Temp> use() {
+        build();
+        return uses;
+    }
+
+    @Override
+    public List<Label> jumps() {
+        return targets;
+    }
+
+    @Override
+    public String getAssembly() {
+        build();
+        return super.getAssembly();
+    }
+
+    /**
+     * Replaces the text of the instruction, not its operands: the text is
+     * rendered again from them after the next change.
+     */
+    @Override
+    public void setAssembly(String assembly) {
+        build();
+        super.setAssembly(assembly);
+    }
+
+    @Override
+    public String format(TempMap m) {
+        build();
+        return super.format(m);
+    }
+
+    @Override
+    public boolean isMoveBetweenTemps() {
+        return opcode == Opcode.MOV && dst instanceof Operand.Reg;
+    }
+
+    @Override
+    public boolean isMoveFromConstant() {
+        return isMoveBetweenTemps() && src instanceof Operand.Imm;
+    }
+
+    /**
+     * Derives the def/use lists and the assembly text from the operands.
+     * The use list holds the registers read through the first operand, then
+     * the ones read through the second, then the implicit ones.
+     */
+    private void build() {
+        if (valid) return;
+
+        // At most one register defined and four read through the operands:
+        Temp[] d = new Temp[1 + count(implicitDefs)];
+        Temp[] u = new Temp[4 + count(implicitUses)];
+        int nd = 0;
+        int nu = 0;
+        StringBuilder b = new StringBuilder(opcode.getMnemonic());
+
+        // A memory operand needs an explicit size when nothing else gives it:
+        boolean sized = (src instanceof Operand.Imm) ||
+            (src instanceof Operand.Name) ||
+            (src == null && opcode != Opcode.CALL && opcode != Opcode.JMP);
+
+        if (dst != null) {
+            b.append(' ');
+            if (dst instanceof Operand.Reg && opcode.writesDestination()) {
+                d[nd++] = ((Operand.Reg)dst).temp;
+                b.append("`d0");
+                if (opcode.readsDestination()) {
+                    u[nu++] = ((Operand.Reg)dst).temp;
+                }
+            } else {
+                nu = render(dst, sized, b, u, nu);
+            }
+        }
+        if (src != null) {
+            b.append(", ");
+            if (src instanceof Operand.Reg && (opcode == Opcode.SHL ||
+                opcode == Opcode.SHR || opcode == Opcode.SAR)) {
+                // A count in a register is in CL, the low byte of ECX:
+                b.append("cl");
+                u[nu++] = ((Operand.Reg)src).temp;
+            } else {
+                nu = render(src, sized, b, u, nu);
+            }
+        }
+        if (targets != null && dst == null) {
+            b.append(" `j0");
+        }
+
+        for (List<Temp> l = implicitDefs; l != null; l = l.tail) {
+            d[nd++] = l.head;
+        }
+        for (List<Temp> l = implicitUses; l != null; l = l.tail) {
+            u[nu++] = l.head;
+        }
+
+        defs = toList(d, nd);
+        uses = toList(u, nu);
+        super.setAssembly(b.toString());
+        valid = true;
+    }
+
+    /**
+     * Renders o, adds the registers it reads to u from position nu and
+     * returns the new count.
+     */
+    private static int render(Operand o, boolean sized, StringBuilder b,
+        Temp[] u, int nu) {
+        if (o instanceof Operand.Reg) {
+            b.append("`u").append(nu);
+            u[nu++] = ((Operand.Reg)o).temp;
+        } else if (o instanceof Operand.Imm) {
+            b.append(((Operand.Imm)o).value);
+        } else if (o instanceof Operand.Name) {
+            b.append(((Operand.Name)o).label.toString());
+        } else {
+            Operand.Mem m = (Operand.Mem)o;
+            if (sized) {
+                b.append("dword ");
+            }
+            b.append('[');
+            String sep = "";
+            if (m.base != null) {
+                b.append("`u").append(nu);
+                u[nu++] = m.base;
+                sep = "+";
+            }
+            if (m.index != null) {
+                b.append(sep).append("`u").append(nu);
+                u[nu++] = m.index;
+                if (m.scale != 1) {
+                    b.append('*').append(m.scale);
+                }
+                sep = "+";
+            }
+            if (m.disp < 0) {
+                b.append(m.disp);
+            } else if (m.disp > 0 || sep.length() == 0) {
+                b.append(sep).append(m.disp);
+            }
+            b.append(']');
+        }
+        return nu;
+    }
+
+    private static int count(List<Temp> l) {
+        int n = 0;
+        for (; l != null; l = l.tail) {
+            n++;
+        }
+        return n;
+    }
+
+    private static List<Temp> toList(Temp[] a, int n) {
+        List<Temp> l = null;
+        for (int i = n - 1; i >= 0; i--) {
+            l = new List<Temp>(a[i], l);
+        }
+        return l;
+    }
+}
@@ -0,0 +1,146 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import temp.Temp;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Available Copies:
+ *     A copy "t <- s" is available at n if on every path to n it is
+ * executed, and neither t nor s is defined between it and n, so that t and
+ * s hold the same value on entry to n:
+ *     out[n] = gen[n] U (in[n] - kill[n])
+ *     in[n] = /\_{p \in pred[n]} out[p]
+ * where gen[n] is the copy n makes, if any, and kill[n] the copies of or
+ * into a temporary n defines. No copy is available on entry to the method,
+ * even when its first block heads a loop. The copies at different nodes
+ * between the same two temporaries are one fact.
+ */
+public class AvailableCopies extends DataflowAnalysis {
+
+    // Dense numbering of the copies (t, s):
+    private Map<Temp, Map<Temp, Integer>> copies;
+    private ArrayList<Temp> sources;
+
+    // Copies that name t (as destination or source), copies into t:
+    private Map<Temp, BitSet> naming;
+    private Map<Temp, BitSet> into;
+
+    // Per node, by node number: the copy made (or -1), the instruction:
+    private int[] generated;
+    private Instr[] instrs;
+
+    public AvailableCopies(AssemFlowGraph cfg) {
+        super(cfg, Direction.FORWARD, Meet.INTERSECTION);
+
+        copies = new HashMap<Temp, Map<Temp, Integer>>();
+        sources = new ArrayList<Temp>();
+        naming = new HashMap<Temp, BitSet>();
+        into = new HashMap<Temp, BitSet>();
+
+        generated = new int[nodes.length];
+        instrs = new Instr[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            instrs[i] = cfg.getInstr(nodes[i]);
+            generated[i] = -1;
+            Temp s = source(instrs[i]);
+            if (s != null && !s.equals(instrs[i].def().head)) {
+                generated[i] = copy(instrs[i].def().head, s);
+            }
+        }
+
+        solve(sources.size());
+        compact();
+    }
+
+    /**
+     * Returns s if instr is a copy "t <- s", else null.
+     *
+     * @param instr
+     * @return
+     */
+    static Temp source(Instr instr) {
+        if (instr instanceof assem.MOVE) {
+            return instr.use().head;
+        }
+        if (instr instanceof X86Instr && instr.isMoveBetweenTemps()) {
+            return Operand.temp(((X86Instr)instr).getSource());
+        }
+        return null;
+    }
+
+    private int copy(Temp t, Temp s) {
+        Map<Temp, Integer> m = copies.get(t);
+        if (m == null) {
+            m = new HashMap<Temp, Integer>();
+            copies.put(t, m);
+        }
+        Integer c = m.get(s);
+        if (c != null) {
+            return c;
+        }
+        c = sources.size();
+        m.put(s, c);
+        sources.add(s);
+        set(naming, t, c);
+        set(naming, s, c);
+        set(into, t, c);
+        return c;
+    }
+
+    private static void set(Map<Temp, BitSet> sets, Temp t, int c) {
+        BitSet b = sets.get(t);
+        if (b == null) {
+            b = new BitSet();
+            sets.put(t, b);
+        }
+        b.set(c);
+    }
+
+    @Override
+    protected void transfer(int i, BitSet input, BitSet result) {
+        result.or(input);
+        if (instrs[i].def() != null) {
+            for (Temp t : instrs[i].def()) {
+                BitSet b = naming.get(t);
+                if (b != null) {
+                    result.andNot(b);
+                }
+            }
+        }
+        if (generated[i] >= 0) {
+            result.set(generated[i]);
+        }
+    }
+
+    /**
+     * Returns the temporary s of the copy "t <- s" available on entry to n,
+     * or null if there is none. There is at most one, since a copy into t
+     * kills the others.
+     *
+     * @param n
+     * @param t
+     * @return
+     */
+    public Temp getSource(Node n, Temp t) {
+        Integer i = index(n);
+        BitSet b = into.get(t);
+        if (i == null || b == null) {
+            return null;
+        }
+        for (int c = b.nextSetBit(0); c >= 0; c = b.nextSetBit(c + 1)) {
+            if (in(i).get(c)) {
+                return sources.get(c);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,435 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import temp.Temp;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Available Expressions, over hashed value numbers:
+ *     Inside a basic block every temporary gets a value number, the number
+ * of an expression over the temporaries' values on entry to the block: a
+ * leaf "t" or an immediate, then (op, x, y) for an arithmetic instruction,
+ * (load, base, index, scale, disp) for a load and so on, equal expressions
+ * getting equal numbers. "mov t, a" then "imul t, b" give t the number of
+ * (imul, a, b) wherever it is computed, which is what lets two-address code
+ * be compared.
+ *     A fact is a pair (v, t): t holds the value v. An instruction that
+ * leaves v in t generates (v, t), and an instruction kills the pairs whose
+ * t or whose leaves it defines, as well as every pair whose value loads
+ * from memory if it may write memory:
+ *     out[n] = gen[n] U (in[n] - kill[n])
+ *     in[n] = /\_{p \in pred[n]} out[p]
+ * so (v, t) is available at n if t holds v on every path to n. Nothing is
+ * available on entry to the method, even when its first block heads a loop.
+ *     A value that depends on a temporary the block has since redefined
+ * can't be written over the leaves any more: it gets a number of its own
+ * and takes part in no pair.
+ */
+public class AvailableExpressions extends DataflowAnalysis {
+
+    /**
+     * An expression, with value numbers for its operands.
+     */
+    private static final class Expr {
+        // A leaf temporary or an immediate has op null, a load op MOV and
+        // an address op LEA:
+        final Opcode op;
+        final Temp leaf;
+        final int a, b, scale;
+        final long disp;
+
+        Expr(Opcode op, Temp leaf, int a, int b, int scale, long disp) {
+            this.op = op;
+            this.leaf = leaf;
+            this.a = a;
+            this.b = b;
+            this.scale = scale;
+            this.disp = disp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Expr)) {
+                return false;
+            }
+            Expr e = (Expr)o;
+            return op == e.op && a == e.a && b == e.b && scale == e.scale &&
+                disp == e.disp &&
+                (leaf == null ? e.leaf == null : leaf.equals(e.leaf));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (op == null) ? 0 : op.hashCode();
+            h = 31 * h + (leaf == null ? 0 : leaf.hashCode());
+            h = 31 * h + a;
+            h = 31 * h + b;
+            h = 31 * h + scale;
+            return 31 * h + (int)(disp ^ (disp >>> 32));
+        }
+    }
+
+    // Value numbers: the expression numbers, the leaves each value depends
+    // on, the values that load from memory, and the values that are only
+    // known to be different from all others (not in numbers):
+    private Map<Expr, Integer> numbers;
+    private ArrayList<Set<Temp>> leaves;
+    private BitSet loads;
+    private BitSet opaque;
+    private BitSet compound;
+
+    // Dense numbering of the facts (v, t):
+    private Map<Integer, Map<Temp, Integer>> facts;
+    private ArrayList<Temp> holders;
+
+    // Facts that name t (as holder or leaf), facts that load from memory,
+    // facts of each value:
+    private Map<Temp, BitSet> naming;
+    private BitSet memory;
+    private Map<Integer, BitSet> byValue;
+
+    // Per node, by node number: the fact generated (or -1), the value
+    // computed (or -1), whether it may write memory, its instruction:
+    private int[] generated;
+    private int[] computed;
+    private boolean[] stores;
+    private Instr[] instrs;
+
+    public AvailableExpressions(AssemFlowGraph cfg) {
+        super(cfg, Direction.FORWARD, Meet.INTERSECTION);
+
+        numbers = new HashMap<Expr, Integer>();
+        leaves = new ArrayList<Set<Temp>>();
+        loads = new BitSet();
+        opaque = new BitSet();
+        compound = new BitSet();
+        facts = new HashMap<Integer, Map<Temp, Integer>>();
+        holders = new ArrayList<Temp>();
+        naming = new HashMap<Temp, BitSet>();
+        memory = new BitSet();
+        byValue = new HashMap<Integer, BitSet>();
+
+        generated = new int[nodes.length];
+        computed = new int[nodes.length];
+        stores = new boolean[nodes.length];
+        instrs = new Instr[nodes.length];
+
+        // Value numbering, block by block in list order:
+        Block block = null;
+        Node previous = null;
+        for (Node n : cfg.nodes()) {
+            if (block == null || !BasicBlocks.continues(previous, n)) {
+                block = new Block();
+            }
+            number(index(n), cfg.getInstr(n), block);
+            previous = n;
+        }
+
+        solve(holders.size());
+        compact();
+    }
+
+    /**
+     * Value numbers of the temporaries in the current basic block (a
+     * temporary that isn't in values still has its value on entry).
+     */
+    private static final class Block {
+        final Map<Temp, Integer> values = new HashMap<Temp, Integer>();
+        // Temporaries whose value depends on each leaf, or loads memory:
+        final Map<Temp, ArrayList<Temp>> dependents = new HashMap<Temp, ArrayList<Temp>>();
+        final ArrayList<Temp> loaded = new ArrayList<Temp>();
+    }
+
+    /**
+     * Numbers the value instr, the node numbered i, leaves in the
+     * temporary it defines, and its fact.
+     */
+    private void number(int i, Instr instr, Block block) {
+        instrs[i] = instr;
+        generated[i] = computed[i] = -1;
+        stores[i] = Instrs.writesMemory(instr);
+
+        int v = -1;
+        boolean computes = false;
+        if (Instrs.writesOnlyRegisters(instr) && instr.def().tail == null) {
+            Temp t = instr.def().head;
+            if (instr instanceof assem.MOVE) {
+                v = value(instr.use().head, block);
+            } else {
+                X86Instr x = (X86Instr)instr;
+                Opcode op = x.getOpcode();
+                if (op == Opcode.MOV) {
+                    v = operand(x.getSource(), block);
+                    computes = x.getSource() instanceof Operand.Mem;
+                } else if (op == Opcode.LEA) {
+                    v = address(Opcode.LEA, (Operand.Mem)x.getSource(), block);
+                    computes = true;
+                } else if (op.isArithmetic()) {
+                    int a = value(t, block);
+                    int b = operand(x.getSource(), block);
+                    // Commutative operations get their operands in order:
+                    if ((op == Opcode.ADD || op == Opcode.AND || op == Opcode.OR ||
+                         op == Opcode.XOR || op == Opcode.IMUL) && b < a) {
+                        int swap = a;
+                        a = b;
+                        b = swap;
+                    }
+                    v = expr(new Expr(op, null, a, b, 0, 0));
+                    computes = true;
+                } else if (op == Opcode.NEG || op == Opcode.INC || op == Opcode.DEC) {
+                    v = expr(new Expr(op, null, value(t, block), -1, 0, 0));
+                    computes = true;
+                }
+            }
+            if (v >= 0 && leaves.get(v).contains(t)) {
+                v = fresh();
+            }
+        }
+
+        // The values that depended on what instr overwrites are lost:
+        if (instr.def() != null) {
+            for (Temp t : instr.def()) {
+                ArrayList<Temp> lost = block.dependents.remove(t);
+                if (lost != null) {
+                    for (Temp u : lost) {
+                        Integer w = block.values.get(u);
+                        if (w != null && leaves.get(w).contains(t)) {
+                            block.values.put(u, fresh());
+                        }
+                    }
+                }
+            }
+        }
+        if (stores[i]) {
+            for (Temp u : block.loaded) {
+                Integer w = block.values.get(u);
+                if (w != null && loads.get(w)) {
+                    block.values.put(u, fresh());
+                }
+            }
+            block.loaded.clear();
+        }
+
+        if (instr.def() == null) {
+            return;
+        }
+        if (v < 0) {
+            for (Temp t : instr.def()) {
+                block.values.put(t, fresh());
+            }
+            return;
+        }
+
+        Temp t = instr.def().head;
+        block.values.put(t, v);
+        for (Temp l : leaves.get(v)) {
+            ArrayList<Temp> d = block.dependents.get(l);
+            if (d == null) {
+                d = new ArrayList<Temp>();
+                block.dependents.put(l, d);
+            }
+            d.add(t);
+        }
+        if (loads.get(v)) {
+            block.loaded.add(t);
+        }
+        if (compound.get(v) && !opaque.get(v)) {
+            generated[i] = fact(v, t);
+            if (computes) {
+                computed[i] = v;
+            }
+        }
+    }
+
+    /**
+     * Value number of the temporary t in block.
+     */
+    private int value(Temp t, Block block) {
+        Integer v = block.values.get(t);
+        if (v != null) {
+            return v;
+        }
+        return expr(new Expr(null, t, -1, -1, 0, 0));
+    }
+
+    private int operand(Operand o, Block block) {
+        if (o instanceof Operand.Reg) {
+            return value(((Operand.Reg)o).temp, block);
+        }
+        if (o instanceof Operand.Imm) {
+            return expr(new Expr(null, null, -1, -1, 0, ((Operand.Imm)o).value));
+        }
+        if (o instanceof Operand.Mem) {
+            return address(Opcode.MOV, (Operand.Mem)o, block);
+        }
+        return fresh();
+    }
+
+    /**
+     * Value number of the address m (op LEA) or of the word there (MOV).
+     */
+    private int address(Opcode op, Operand.Mem m, Block block) {
+        int base = (m.base == null) ? -1 : value(m.base, block);
+        int index = (m.index == null) ? -1 : value(m.index, block);
+        return expr(new Expr(op, null, base, index, m.scale, m.disp));
+    }
+
+    /**
+     * Returns the number of e, numbering it first if it is new.
+     */
+    private int expr(Expr e) {
+        Integer v = numbers.get(e);
+        if (v != null) {
+            return v;
+        }
+        v = leaves.size();
+        numbers.put(e, v);
+
+        Set<Temp> l = new HashSet<Temp>();
+        if (e.leaf != null) {
+            l.add(e.leaf);
+        }
+        for (int operand : new int[] {e.a, e.b}) {
+            if (operand < 0) {
+                continue;
+            }
+            l.addAll(leaves.get(operand));
+            if (loads.get(operand)) {
+                loads.set(v);
+            }
+            if (opaque.get(operand)) {
+                opaque.set(v);
+            }
+        }
+        leaves.add(l);
+        if (e.op == Opcode.MOV) {
+            loads.set(v);
+        }
+        if (e.op != null) {
+            compound.set(v);
+        }
+        return v;
+    }
+
+    /**
+     * Returns a number equal to no other value.
+     */
+    private int fresh() {
+        int v = leaves.size();
+        leaves.add(new HashSet<Temp>());
+        opaque.set(v);
+        return v;
+    }
+
+    /**
+     * Returns the number of the fact (v, t), numbering it first if needed.
+     */
+    private int fact(int v, Temp t) {
+        Map<Temp, Integer> m = facts.get(v);
+        if (m == null) {
+            m = new HashMap<Temp, Integer>();
+            facts.put(v, m);
+        }
+        Integer f = m.get(t);
+        if (f != null) {
+            return f;
+        }
+        f = holders.size();
+        m.put(t, f);
+        holders.add(t);
+
+        name(t, f);
+        for (Temp l : leaves.get(v)) {
+            name(l, f);
+        }
+        if (loads.get(v)) {
+            memory.set(f);
+        }
+        BitSet b = byValue.get(v);
+        if (b == null) {
+            b = new BitSet();
+            byValue.put(v, b);
+        }
+        b.set(f);
+        return f;
+    }
+
+    private void name(Temp t, int f) {
+        BitSet b = naming.get(t);
+        if (b == null) {
+            b = new BitSet();
+            naming.put(t, b);
+        }
+        b.set(f);
+    }
+
+    /**
+     * out[n] = gen[n] U (in[n] - kill[n]), with kill[n] the facts naming a
+     * temporary n defines (and the loads if n may store).
+     */
+    @Override
+    protected void transfer(int i, BitSet input, BitSet result) {
+        result.or(input);
+        if (instrs[i].def() != null) {
+            for (Temp t : instrs[i].def()) {
+                BitSet b = naming.get(t);
+                if (b != null) {
+                    result.andNot(b);
+                }
+            }
+        }
+        if (stores[i]) {
+            result.andNot(memory);
+        }
+        if (generated[i] >= 0) {
+            result.set(generated[i]);
+        }
+    }
+
+    /**
+     * Returns the value number n computes (by an arithmetic instruction, a
+     * lea or a load, in the temporary it defines), or -1 if it computes
+     * none another node could have computed.
+     *
+     * @param n
+     * @return
+     */
+    public int getComputed(Node n) {
+        Integer i = index(n);
+        return (i == null) ? -1 : computed[i];
+    }
+
+    /**
+     * Returns the temporaries that hold the value v on entry to n, on every
+     * path.
+     *
+     * @param n
+     * @param v
+     * @return
+     */
+    public ArrayList<Temp> getHolders(Node n, int v) {
+        ArrayList<Temp> result = new ArrayList<Temp>();
+        Integer i = index(n);
+        BitSet b = byValue.get(v);
+        if (i == null || b == null) {
+            return result;
+        }
+        for (int f = b.nextSetBit(0); f >= 0; f = b.nextSetBit(f + 1)) {
+            if (in(i).get(f)) {
+                result.add(holders.get(f));
+            }
+        }
+        return result;
+    }
+}
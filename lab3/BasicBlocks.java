@@ -0,0 +1,172 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import util.List;
+
+/**
+ * Basic blocks of a flow graph: maximal runs of consecutive instructions
+ * that are only entered at the first and only left at the last. A block
+ * starts at the first instruction, at an instruction with several
+ * predecessors (or none, or one that isn't the instruction before it) and
+ * after a jump; a label only reached by falling through doesn't start one.
+ *     The blocks are numbered in reverse postorder, and the nodes block by
+ * block: the nodes of block b are numbers getFirst(b) to getFirst(b + 1) - 1.
+ */
+public class BasicBlocks {
+
+    // Every node, block by block:
+    private Node[] nodes;
+    private Map<Node, Integer> nodeIndex;
+
+    // Number of the first node of each block, then nodes.length:
+    private int[] first;
+
+    // Block of each node, by node number:
+    private int[] blockOf;
+
+    // Blocks before and after each block:
+    private int[][] preds;
+    private int[][] succs;
+
+    public BasicBlocks(AssemFlowGraph cfg) {
+        // In a depth-first search the nodes of a block are entered from the
+        // one before and have no other successor, so each block comes out
+        // whole, in order:
+        nodes = GraphOrder.reversePostorder(cfg);
+        nodeIndex = new HashMap<Node, Integer>();
+        for (int i = 0; i < nodes.length; i++) {
+            nodeIndex.put(nodes[i], i);
+        }
+
+        Map<Node, Node> previous = new HashMap<Node, Node>();
+        Node p = null;
+        for (Node n : cfg.nodes()) {
+            previous.put(n, p);
+            p = n;
+        }
+
+        ArrayList<Integer> leaders = new ArrayList<Integer>();
+        blockOf = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (i == 0 || previous.get(nodes[i]) != nodes[i - 1] ||
+                !continues(nodes[i - 1], nodes[i])) {
+                leaders.add(i);
+            }
+            blockOf[i] = leaders.size() - 1;
+        }
+        first = new int[leaders.size() + 1];
+        for (int b = 0; b < leaders.size(); b++) {
+            first[b] = leaders.get(b);
+        }
+        first[leaders.size()] = nodes.length;
+
+        preds = new int[size()][];
+        succs = new int[size()][];
+        for (int b = 0; b < size(); b++) {
+            preds[b] = blocks(nodes[first[b]].getPreds());
+            succs[b] = blocks(nodes[first[b + 1] - 1].getSuccs());
+        }
+    }
+
+    /**
+     * Whether n can be in the same block as previous, the instruction
+     * before it in the list: previous only goes to n, and only previous
+     * goes to n.
+     *
+     * @param previous
+     * @param n
+     * @return
+     */
+    static boolean continues(Node previous, Node n) {
+        return previous != null &&
+            n.getPreds() != null && n.getPreds().tail == null &&
+            n.getPreds().head == previous &&
+            previous.getSuccs() != null && previous.getSuccs().tail == null;
+    }
+
+    private int[] blocks(List<Node> l) {
+        if (l == null) {
+            return null;
+        }
+        int[] result = new int[l.size()];
+        int k = 0;
+        for (Node n : l) {
+            result[k++] = blockOf[nodeIndex.get(n)];
+        }
+        return result;
+    }
+
+    /**
+     * Number of blocks.
+     *
+     * @return
+     */
+    public int size() {
+        return first.length - 1;
+    }
+
+    /**
+     * Every node, block by block.
+     *
+     * @return
+     */
+    public Node[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the number of a node, or null if it isn't in the graph.
+     *
+     * @param n
+     * @return
+     */
+    public Integer getIndex(Node n) {
+        return nodeIndex.get(n);
+    }
+
+    /**
+     * Returns the number of the first node of block b (getFirst(size()) is
+     * the number of nodes).
+     *
+     * @param b
+     * @return
+     */
+    public int getFirst(int b) {
+        return first[b];
+    }
+
+    /**
+     * Returns the block of the node numbered i.
+     *
+     * @param i
+     * @return
+     */
+    public int getBlock(int i) {
+        return blockOf[i];
+    }
+
+    /**
+     * Returns the blocks that go to b, or null if b has no predecessor.
+     *
+     * @param b
+     * @return
+     */
+    public int[] getPreds(int b) {
+        return preds[b];
+    }
+
+    /**
+     * Returns the blocks b goes to, or null if b has no successor.
+     *
+     * @param b
+     * @return
+     */
+    public int[] getSuccs(int b) {
+        return succs[b];
+    }
+}
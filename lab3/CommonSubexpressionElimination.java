@@ -0,0 +1,115 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Frame;
+import x86.X86Instr;
+
+/**
+ * Common Subexpression Elimination:
+ *     If an instruction n computes into t a value v (a load, a lea, or the
+ * last instruction of "mov t, a; op t, b") that a temporary h holds on
+ * every path to n (see AvailableExpressions), n is rewritten as "t <- h",
+ * or deleted if h is t.
+ *     The instructions that computed the first operand of a rewritten
+ * instruction ("mov t, a") are left dead, for dead code elimination. Only
+ * temporaries other than machine registers are used as h, so no machine
+ * register lives longer.
+ */
+public class CommonSubexpressionElimination {
+
+    private final Set<Temp> machine;
+    private int replaced;
+
+    /**
+     * @param frame frame of the method, which gives the machine registers
+     */
+    public CommonSubexpressionElimination(Frame frame) {
+        machine = new HashSet<Temp>();
+        for (Temp r : frame.registers()) {
+            machine.add(r);
+        }
+    }
+
+    /**
+     * Replaces the recomputations in l, in place.
+     *
+     * @param l
+     * @return true if an instruction was replaced
+     */
+    public boolean optimize(List<Instr> l) {
+        if (l == null) {
+            return false;
+        }
+        AssemFlowGraph cfg = new AssemFlowGraph(l);
+        AvailableExpressions available = new AvailableExpressions(cfg);
+
+        ArrayList<Instr> code = new ArrayList<Instr>();
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for (Node n : cfg.nodes()) {
+            code.add(cfg.getInstr(n));
+            nodes.add(n);
+        }
+
+        // Every replacement keeps the value of every temporary everywhere,
+        // so the facts hold for all of them at once:
+        ArrayList<Instr> result = new ArrayList<Instr>(code.size());
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            int v = available.getComputed(nodes.get(i));
+            Temp h = (v < 0) ? null : holder(available.getHolders(nodes.get(i), v),
+                instr.def().head);
+            if (h == null ||
+                (instr instanceof X86Instr &&
+                 Instrs.changesFlags((X86Instr)instr) &&
+                 !Instrs.flagsDead(code, i + 1))) {
+                result.add(instr);
+                continue;
+            }
+            if (!h.equals(instr.def().head)) {
+                result.add(new assem.MOVE(instr.def().head, h));
+            }
+            replaced++;
+            changed = true;
+        }
+
+        if (changed) {
+            Instrs.replace(l, result);
+        }
+        return changed;
+    }
+
+    /**
+     * Number of instructions replaced (or deleted) so far.
+     *
+     * @return
+     */
+    public int getReplacedCount() {
+        return replaced;
+    }
+
+    /**
+     * Returns t if it is among holders, else the first other than a
+     * machine register, or null.
+     */
+    private Temp holder(ArrayList<Temp> holders, Temp t) {
+        Temp h = null;
+        for (Temp u : holders) {
+            if (u.equals(t)) {
+                return t;
+            }
+            if (h == null && !machine.contains(u)) {
+                h = u;
+            }
+        }
+        return h;
+    }
+}
@@ -0,0 +1,419 @@
+package optimization;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import temp.Label;
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+public class CondConstPropagation {
+
+    // Lattice of a definition: TOP (no value seen yet), CONST or BOTTOM:
+    private static final int TOP = 0;
+    private static final int CONST = 1;
+    private static final int BOTTOM = 2;
+
+    private AssemFlowGraph cfg;
+    private UseDefChains chains;
+
+    // Nodes in program order:
+    private Node[] nodes;
+    private Map<Node, Integer> index;
+
+    // Lattice value of the temporary defined by each node:
+    private int[] state;
+    private int[] value;
+
+    // Nodes using a value defined in each node (def-use edges):
+    private ArrayList<ArrayList<Integer>> uses;
+
+    private boolean[] executable;
+    private Set<Long> executableEdges;
+
+    private ArrayDeque<Integer> flowList;
+    private ArrayDeque<Integer> ssaList;
+
+    /**
+     * Sparse Conditional Constant Propagation:
+     *     Every definition starts at TOP and every node starts unreachable.
+     * Starting from the entry, a node is evaluated when it first becomes
+     * reachable and again whenever the value of one of its reaching
+     * definitions is lowered (def-use edges come from the reaching
+     * definitions of all the definitions in the method). The value of a
+     * use is the meet of its executable reaching definitions.
+     *     A conditional jump whose "cmp" has constant operands only makes
+     * the taken edge executable. In the end, definitions with a constant
+     * value are rewritten as "t <- c", constant operands are substituted,
+     * decided branches become "jmp" (or disappear when they fall through)
+     * and unreachable instructions are removed. A source operand only
+     * becomes an immediate where the opcode takes one.
+     *
+     * @param l
+     * @return The optimized list of instructions.
+     */
+    public List<Instr> optimize(List<Instr> l) {
+        cfg = new AssemFlowGraph(l);
+        chains = new UseDefChains(cfg, new ReachingDefinition(l, cfg, true));
+
+        ArrayList<Node> all = new ArrayList<Node>();
+        index = new HashMap<Node, Integer>();
+        for (Node n : cfg.nodes()) {
+            index.put(n, all.size());
+            all.add(n);
+        }
+        nodes = all.toArray(new Node[all.size()]);
+        if (nodes.length == 0) {
+            return l;
+        }
+
+        state = new int[nodes.length];
+        value = new int[nodes.length];
+        executable = new boolean[nodes.length];
+        executableEdges = new HashSet<Long>();
+
+        // Def-use edges:
+        uses = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < nodes.length; i++) {
+            uses.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            if (cfg.getUsed(nodes[i]) == null) continue;
+            for (Temp t : cfg.getUsed(nodes[i])) {
+                for (Node d : chains.getDefs(nodes[i], t)) {
+                    uses.get(index.get(d)).add(i);
+                }
+            }
+        }
+
+        // Propagate from the entry:
+        flowList = new ArrayDeque<Integer>();
+        ssaList = new ArrayDeque<Integer>();
+        executable[0] = true;
+        flowList.add(0);
+        while (!flowList.isEmpty() || !ssaList.isEmpty()) {
+            if (!flowList.isEmpty()) {
+                visit(flowList.poll());
+            } else {
+                int n = ssaList.poll();
+                if (executable[n]) {
+                    visit(n);
+                }
+            }
+        }
+
+        return rewrite();
+    }
+
+    /**
+     * Evaluates node i: lowers the value of its definition and marks the
+     * outgoing edges that can be taken as executable.
+     */
+    private void visit(int i) {
+        Instr instr = cfg.getInstr(nodes[i]);
+
+        // Definition:
+        List<Temp> defined = cfg.getDefined(nodes[i]);
+        if (defined != null) {
+            int s = BOTTOM;
+            int v = 0;
+            if (defined.tail == null) {
+                long[] r = evaluate(i, instr);
+                s = (int)r[0];
+                v = (int)r[1];
+            }
+            lower(i, s, v);
+        }
+
+        // Control flow:
+        if (is(instr, Opcode.CMP)) {
+            markSuccessors(i);
+
+            // Re-evaluate the conditional jump that reads the flags:
+            int j = i + 1;
+            if (j < nodes.length && executable[j] &&
+                isConditionalJump(cfg.getInstr(nodes[j]))) {
+                visitBranch(j);
+            }
+        } else if (isConditionalJump(instr)) {
+            visitBranch(i);
+        } else {
+            markSuccessors(i);
+        }
+    }
+
+    private void visitBranch(int j) {
+        Boolean taken = branchOutcome(j);
+        if (taken == null) {
+            markSuccessors(j);
+            return;
+        }
+        markEdge(j, branchTarget(j, taken));
+    }
+
+    private void markSuccessors(int i) {
+        if (nodes[i].getSuccs() == null) return;
+        for (Node s : nodes[i].getSuccs()) {
+            markEdge(i, index.get(s));
+        }
+    }
+
+    private void markEdge(int from, int to) {
+        if (to < 0) return;
+        if (!executableEdges.add((long)from * nodes.length + to)) return;
+        if (!executable[to]) {
+            executable[to] = true;
+            flowList.add(to);
+        }
+    }
+
+    private void lower(int i, int s, int v) {
+        if (s == TOP || state[i] == BOTTOM) {
+            return;
+        }
+        if (state[i] == CONST && s == CONST) {
+            if (v == value[i]) {
+                return;
+            }
+            // Two different constants meet at BOTTOM:
+            s = BOTTOM;
+        }
+        state[i] = s;
+        value[i] = v;
+        for (int u : uses.get(i)) {
+            ssaList.add(u);
+        }
+    }
+
+    /**
+     * Lattice value {state, value} of the temporary t used at node i.
+     */
+    private long[] valueOf(int i, Temp t) {
+        Node[] defs = chains.getDefs(nodes[i], t);
+        if (defs.length == 0) {
+            // Parameters, frame pointer...:
+            return new long[] {BOTTOM, 0};
+        }
+
+        int s = TOP;
+        int v = 0;
+        for (Node d : defs) {
+            int k = index.get(d);
+            if (!executable[k] || state[k] == TOP) continue;
+            if (state[k] == BOTTOM || (s == CONST && value[k] != v)) {
+                return new long[] {BOTTOM, 0};
+            }
+            s = CONST;
+            v = value[k];
+        }
+        return new long[] {s, v};
+    }
+
+    /**
+     * Lattice value of an operand: an immediate or a temporary.
+     */
+    private long[] operand(int i, Operand o) {
+        if (o instanceof Operand.Imm) {
+            return new long[] {CONST, (int)((Operand.Imm)o).value};
+        }
+        if (o instanceof Operand.Reg) {
+            return valueOf(i, ((Operand.Reg)o).temp);
+        }
+        return new long[] {BOTTOM, 0};
+    }
+
+    /**
+     * Lattice value of the temporary defined at node i.
+     */
+    private long[] evaluate(int i, Instr instr) {
+        if (instr instanceof assem.MOVE) {
+            return valueOf(i, cfg.getUsed(nodes[i]).head);
+        }
+        if (!(instr instanceof X86Instr)) {
+            return new long[] {BOTTOM, 0};
+        }
+
+        X86Instr x = (X86Instr)instr;
+        Temp t = Operand.temp(x.getDestination());
+        if (t == null || !t.equals(cfg.getDefined(nodes[i]).head)) {
+            return new long[] {BOTTOM, 0};
+        }
+
+        long[] src = operand(i, x.getSource());
+        if (x.getOpcode() == Opcode.MOV) {
+            return src;
+        }
+        if (!x.getOpcode().isArithmetic()) {
+            return new long[] {BOTTOM, 0};
+        }
+
+        // The destination is also the left operand:
+        long[] dst = valueOf(i, t);
+        if (dst[0] == BOTTOM || src[0] == BOTTOM) {
+            return new long[] {BOTTOM, 0};
+        }
+        if (dst[0] == TOP || src[0] == TOP) {
+            return new long[] {TOP, 0};
+        }
+        return new long[] {CONST, fold(x.getOpcode(), (int)dst[1], (int)src[1])};
+    }
+
+    private static int fold(Opcode op, int a, int b) {
+        switch (op) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case AND: return a & b;
+            case OR:  return a | b;
+            case XOR: return a ^ b;
+            case SHL: return a << (b & 31);
+            case SHR: return a >>> (b & 31);
+            case IMUL: return a * b;
+            default:  return a >> (b & 31);
+        }
+    }
+
+    /**
+     * Returns whether the conditional jump at node j is taken, or null if
+     * it can't be decided (yet).
+     */
+    private Boolean branchOutcome(int j) {
+        int c = j - 1;
+        if (c < 0 || !is(cfg.getInstr(nodes[c]), Opcode.CMP) ||
+            nodes[j].getPreds() == null || nodes[j].getPreds().tail != null) {
+            return null;
+        }
+
+        X86Instr cmp = (X86Instr)cfg.getInstr(nodes[c]);
+        long[] a = operand(c, cmp.getDestination());
+        long[] b = operand(c, cmp.getSource());
+        if (a[0] != CONST || b[0] != CONST) {
+            return null;
+        }
+
+        int x = (int)a[1];
+        int y = (int)b[1];
+        // Unsigned comparisons are signed ones with the sign bit flipped:
+        int ux = x ^ Integer.MIN_VALUE;
+        int uy = y ^ Integer.MIN_VALUE;
+        switch (((X86Instr)cfg.getInstr(nodes[j])).getOpcode()) {
+            case JZ:  return x == y;
+            case JNZ: return x != y;
+            case JL:  return x < y;
+            case JLE: return x <= y;
+            case JG:  return x > y;
+            case JGE: return x >= y;
+            case JB:  return ux < uy;
+            case JBE: return ux <= uy;
+            case JA:  return ux > uy;
+            case JAE: return ux >= uy;
+        }
+        return null;
+    }
+
+    /**
+     * Node reached by the conditional jump at node j when it is (or isn't)
+     * taken. Codegen always places the "next" label of a CJUMP right after
+     * the conditional jump, so that is the fall-through successor; it is
+     * also the only one when both targets are that label.
+     */
+    private int branchTarget(int j, boolean taken) {
+        if (nodes[j].getSuccs() == null) return -1;
+        for (Node s : nodes[j].getSuccs()) {
+            int k = index.get(s);
+            if ((k == j + 1) != taken) {
+                return k;
+            }
+        }
+        return j + 1;
+    }
+
+    /**
+     * Builds the optimized list of instructions.
+     */
+    private List<Instr> rewrite() {
+        ArrayList<Instr> result = new ArrayList<Instr>();
+        for (int i = 0; i < nodes.length; i++) {
+            // Unreachable code:
+            if (!executable[i]) continue;
+
+            Instr instr = cfg.getInstr(nodes[i]);
+            List<Temp> defined = cfg.getDefined(nodes[i]);
+
+            // Decided branch: drop the "cmp" and turn "jcc" into "jmp":
+            if (is(instr, Opcode.CMP) && i + 1 < nodes.length &&
+                isConditionalJump(cfg.getInstr(nodes[i + 1])) &&
+                branchOutcome(i + 1) != null) {
+                boolean taken = branchOutcome(i + 1);
+                if (branchTarget(i + 1, taken) != i + 2) {
+                    List<Label> targets = cfg.getInstr(nodes[i + 1]).jumps();
+                    Label l = taken ? targets.head : targets.tail.head;
+                    result.add(new X86Instr(
+                        Opcode.JMP,
+                        new List<Label>(l, null)
+                    ));
+                }
+                i++;
+                continue;
+            }
+
+            // Constant definition:
+            if (defined != null && defined.tail == null && state[i] == CONST &&
+                (instr instanceof assem.MOVE || is(instr, Opcode.MOV) ||
+                 (instr instanceof X86Instr &&
+                  ((X86Instr)instr).getOpcode().isArithmetic()))) {
+                result.add(new X86Instr(
+                    Opcode.MOV,
+                    Operand.reg(defined.head),
+                    Operand.imm(value[i])
+                ));
+                continue;
+            }
+
+            // Constant source operand, where the opcode takes an immediate
+            // (and the operand of a push):
+            if (instr instanceof X86Instr) {
+                X86Instr x = (X86Instr)instr;
+                if (x.getSource() instanceof Operand.Reg &&
+                    x.getOpcode().takesImmediateSource()) {
+                    long[] src = operand(i, x.getSource());
+                    if (src[0] == CONST) {
+                        x.setSource(Operand.imm(src[1]));
+                    }
+                } else if (x.getOpcode() == Opcode.PUSH &&
+                    x.getDestination() instanceof Operand.Reg) {
+                    long[] dst = operand(i, x.getDestination());
+                    if (dst[0] == CONST) {
+                        x.setDestination(Operand.imm(dst[1]));
+                    }
+                }
+            }
+
+            result.add(instr);
+        }
+
+        List<Instr> l = null;
+        for (int i = result.size() - 1; i >= 0; i--) {
+            l = new List<Instr>(result.get(i), l);
+        }
+        return l;
+    }
+
+    private static boolean is(Instr instr, Opcode op) {
+        return instr instanceof X86Instr && ((X86Instr)instr).getOpcode() == op;
+    }
+
+    private static boolean isConditionalJump(Instr instr) {
+        return instr instanceof X86Instr &&
+            ((X86Instr)instr).getOpcode().isConditionalJump();
+    }
+}
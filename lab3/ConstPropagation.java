@@ -1,5 +1,10 @@
 package optimization;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import temp.Temp;
@@ -7,12 +12,22 @@ import util.List;
 import assem.Instr;
 import flow_graph.AssemFlowGraph;
 import graph.Node;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
 
 public class ConstPropagation {
 
     private ReachingDefinition dfa;
+    private UseDefChains chains;
     private AssemFlowGraph cfg;
 
+    // Current instruction of each node, once rewritten:
+    private Map<Node, Instr> instrs;
+
+    // Whether the last optimize() rewrote an operand:
+    private boolean changed;
+
     /**
      * Constant Propagation:
      *     Suppose we have a statement "d : t <- c", where c is a constant, and
@@ -20,57 +35,124 @@ public class ConstPropagation {
      *     We know that t is constant in n if d reaches n, and no other defini-
      * tions of t reach n.
      *     In this case, we can rewrite n as "y <- c + x".
+     *     Rewriting a move "y <- t" makes it a new constant definition, so
+     * the uses it reaches are visited again, and so on until nothing changes.
+     * A rewrite keeps the temporaries the instruction defines, so it never
+     * changes which definitions reach where: the reaching definitions and
+     * the use-def chains are computed once, at the start.
+     *
+     * @param l
+     * @return true if an operand was rewritten
      */
-    public void optimize(List<Instr> l) {
-        String cte;
-        Node reaching_def_t = null;
-        int num_reaching_def_t = 0;
+    public boolean optimize(List<Instr> l) {
+        changed = false;
         
         cfg = new AssemFlowGraph(l);
-        dfa = new ReachingDefinition(l, cfg);
+        // Every definition of t must be seen, or "t <- t + 1" would let a
+        // constant definition of t before it look unique:
+        dfa = new ReachingDefinition(l, cfg, true);
+        chains = new UseDefChains(cfg, dfa);
+        instrs = new HashMap<Node, Instr>();
+        for (Node n : cfg.nodes()) {
+            instrs.put(n, cfg.getInstr(n));
+        }
 
+        // Every node once, in program order, then the uses of each new
+        // constant definition:
+        ArrayList<Node> worklist = new ArrayList<Node>();
+        Set<Node> queued = new HashSet<Node>();
         for (Node n : cfg.nodes()) {
-            if (cfg.getUsed(n) == null) continue;
+            worklist.add(n);
+            queued.add(n);
+        }
+        Collections.reverse(worklist);
+
+        while (!worklist.isEmpty()) {
+            Node n = worklist.remove(worklist.size() - 1);
+            queued.remove(n);
+            Instr instr = instrs.get(n);
+            if (instr.use() == null) continue;
+            boolean constant = instr.isMoveFromConstant();
             
             // Try to propagate each temporary used in this node:
-            for (Temp t : cfg.getUsed(n)) {
-                // Get definitions that reach this node and define t:
-                reaching_def_t = null;
-                num_reaching_def_t = 0;
-                for (Node d : dfa.getIn(n)) {
-                    if (cfg.getDefined(d).hasElement(t)) {
-                        reaching_def_t = d;
-                        num_reaching_def_t++;
-                    }
-                }
-                
+            for (Temp t : instr.use()) {
                 // Don't propagate if reaching definition is not unique:
-                if (num_reaching_def_t != 1) {
+                Node d = chains.getUniqueDef(n, t);
+                if (d == null) {
                     continue;
                 }
                 
                 // Don't propagate if it's not a constant definition:
-                if (!cfg.getInstr(reaching_def_t).isMoveFromConstant()) {
+                if (!(instrs.get(d) instanceof X86Instr) ||
+                    !instrs.get(d).isMoveFromConstant()) {
                     continue;
                 }
 
                 // Propagate constant:
-                cte = this.getConstant(cfg.getInstr(reaching_def_t));
-                this.propagateConstant(cfg.getInstr(n), cte);                
+                Instr newInstr = propagateConstant(instr, t,
+                    getConstant(instrs.get(d)));
+                if (newInstr != instr) {
+                    instrs.put(n, newInstr);
+                    instr = newInstr;
+                }
+            }
+
+            if (!constant && instr.isMoveFromConstant()) {
+                for (Node u : dfa.getUses(n)) {
+                    if (queued.add(u)) {
+                        worklist.add(u);
+                    }
+                }
+            }
+        }
+
+        // Put the instructions that had to be replaced in the list (the
+        // nodes of the flow graph are in list order):
+        if (changed) {
+            List<Instr> c = l;
+            for (Node n : cfg.nodes()) {
+                c.head = instrs.get(n);
+                c = c.tail;
             }
         }
+        return changed;
     }
 
-    private void propagateConstant(Instr instr, String cte) {
-        String assembly = instr.getAssembly();
-        int index = assembly.indexOf(",");
-        String newAssembly = assembly.substring(0, index + 2) + cte;
-        instr.setAssembly(newAssembly.replaceAll("mov", "mov dword"));
+    /**
+     * Rewrites the operand of instr that reads t as the immediate cte, if
+     * the instruction accepts an immediate there. Returns the rewritten
+     * instruction, which is a new one for register to register moves.
+     */
+    private Instr propagateConstant(Instr instr, Temp t, long cte) {
+        // t <- s becomes t <- c:
+        if (instr instanceof assem.MOVE) {
+            changed = true;
+            return new X86Instr(
+                Opcode.MOV,
+                Operand.reg(instr.def().head),
+                Operand.imm(cte)
+            );
+        }
+        if (!(instr instanceof X86Instr)) {
+            return instr;
+        }
+
+        // Only the second operand of some opcodes (or the operand of a push)
+        // can be an immediate:
+        X86Instr x = (X86Instr)instr;
+        if (t.equals(Operand.temp(x.getSource())) &&
+            x.getOpcode().takesImmediateSource()) {
+            x.setSource(Operand.imm(cte));
+            changed = true;
+        } else if (x.getOpcode() == Opcode.PUSH &&
+            t.equals(Operand.temp(x.getDestination()))) {
+            x.setDestination(Operand.imm(cte));
+            changed = true;
+        }
+        return x;
     }
 
-    private String getConstant(Instr instruction) {
-        String instr = instruction.getAssembly();
-        int index = instr.indexOf(",");
-        return instr.substring(index + 1, instr.length());
+    private long getConstant(Instr instruction) {
+        return ((Operand.Imm)((X86Instr)instruction).getSource()).value;
     }
 }
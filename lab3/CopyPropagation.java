@@ -0,0 +1,115 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Frame;
+import x86.X86Instr;
+
+/**
+ * Copy Propagation:
+ *     Suppose we have a copy "d : t <- s" and a statement n that reads t.
+ * If d is available at n (see AvailableCopies), t and s hold the same value
+ * there, and n can read s instead.
+ *     A chain of copies "a <- b", "t <- a" available at n is followed to its
+ * start, so n reads b. The copies left without a use are dead, for dead
+ * code elimination.
+ *     Copies from or into machine registers are not propagated: they stand
+ * for the implicit operands of calls, divisions and the like, and reading a
+ * machine register further away would only make it live longer.
+ */
+public class CopyPropagation {
+
+    private final Set<Temp> machine;
+    private int replaced;
+
+    /**
+     * @param frame frame of the method, which gives the machine registers
+     */
+    public CopyPropagation(Frame frame) {
+        machine = new HashSet<Temp>();
+        for (Temp r : frame.registers()) {
+            machine.add(r);
+        }
+    }
+
+    /**
+     * Rewrites the uses of copied temporaries in l, in place.
+     *
+     * @param l
+     * @return true if a use was rewritten
+     */
+    public boolean optimize(List<Instr> l) {
+        if (l == null) {
+            return false;
+        }
+        AssemFlowGraph cfg = new AssemFlowGraph(l);
+        AvailableCopies copies = new AvailableCopies(cfg);
+
+        // Rewriting a use keeps every value, so the copies available stay
+        // available (the copies made by rewritten moves are found next time):
+        boolean changed = false;
+        List<Instr> c = l;
+        for (Node n : cfg.nodes()) {
+            Instr instr = c.head;
+            if (instr.use() != null) {
+                ArrayList<Temp> uses = new ArrayList<Temp>();
+                for (Temp t : instr.use()) {
+                    uses.add(t);
+                }
+                for (Temp t : uses) {
+                    Temp s = source(copies, n, t);
+                    if (s == null) {
+                        continue;
+                    }
+                    if (instr instanceof assem.MOVE) {
+                        instr = new assem.MOVE(instr.def().head, s);
+                        c.head = instr;
+                    } else if (!(instr instanceof X86Instr) ||
+                        !((X86Instr)instr).replaceUse(t, s)) {
+                        continue;
+                    }
+                    replaced++;
+                    changed = true;
+                }
+            }
+            c = c.tail;
+        }
+        return changed;
+    }
+
+    /**
+     * Number of uses rewritten so far.
+     *
+     * @return
+     */
+    public int getReplacedCount() {
+        return replaced;
+    }
+
+    /**
+     * Returns the temporary at the start of the chain of copies into t
+     * available at n, or null if there is none (or t or its source is a
+     * machine register).
+     */
+    private Temp source(AvailableCopies copies, Node n, Temp t) {
+        if (machine.contains(t)) {
+            return null;
+        }
+        Temp s = null;
+        Set<Temp> seen = new HashSet<Temp>();
+        seen.add(t);
+        for (Temp u = copies.getSource(n, t);
+             u != null && !machine.contains(u) && seen.add(u);
+             u = copies.getSource(n, u)) {
+            s = u;
+        }
+        return s;
+    }
+}
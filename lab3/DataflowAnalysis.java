@@ -0,0 +1,379 @@
+package optimization;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Iterative bit-vector dataflow solver over the basic blocks of an
+ * AssemFlowGraph.
+ *
+ *     An analysis numbers the facts it tracks (definitions, temporaries,
+ * expressions...) from 0 to universe - 1 and describes each node by a
+ * transfer function, by default out = gen U (in - kill). Every transfer
+ * function must have that form, with gen and kill that may be computed on
+ * the fly.
+ *
+ *     The solver only keeps the value entering and the value leaving each
+ * basic block (see BasicBlocks). The transfer function of a block of more
+ * than one node is summarized the same way, gen[B] being the result of the
+ * block for an empty input and kill[B] the facts missing from its result for
+ * a full one. Blocks are visited from a worklist in reverse postorder
+ * (forward problems) or postorder (backward problems), again only when the
+ * value flowing into them changed. The in and out sets of a single node are
+ * derived when asked for, by a walk through its block from the block's
+ * input, which is kept until another block is asked for.
+ *
+ *     Subclasses call the constructor, fill gen(i) and kill(i) (or override
+ * transfer) for every node number i and then call solve().
+ *
+ *     Once solved, compact() lets the blocks with equal in (or out) sets
+ * share a single BitSet.
+ */
+public abstract class DataflowAnalysis {
+
+    public enum Direction { FORWARD, BACKWARD }
+
+    public enum Meet { UNION, INTERSECTION }
+
+    protected AssemFlowGraph cfg;
+
+    private Direction direction;
+    private Meet meet;
+
+    // Dense numbering of the CFG nodes, block by block:
+    protected Node[] nodes;
+    private BasicBlocks blocks;
+
+    // Number of facts tracked by the analysis:
+    protected int universe;
+
+    // Per node sets, indexed by node number (null until gen(i) or kill(i)
+    // asks for them):
+    protected BitSet[] gen;
+    protected BitSet[] kill;
+
+    // Per block sets, indexed by block number: the value entering the first
+    // node and the value leaving the last, and the summary of the blocks of
+    // more than one node (null until needed, or when stale):
+    private BitSet[] in;
+    private BitSet[] out;
+    private BitSet[] blockGen;
+    private BitSet[] blockKill;
+
+    // The block whose node values were last derived, and those values
+    // (values[k] enters or leaves its k-th node, in the flow direction):
+    private int expanded;
+    private BitSet[] values;
+
+    // Solver statistics:
+    private int iterations;
+    private int visits;
+
+    protected DataflowAnalysis(AssemFlowGraph cfg, Direction direction,
+        Meet meet) {
+        this.cfg = cfg;
+        this.direction = direction;
+        this.meet = meet;
+
+        blocks = new BasicBlocks(cfg);
+        nodes = blocks.getNodes();
+
+        gen = new BitSet[nodes.length];
+        kill = new BitSet[nodes.length];
+        expanded = -1;
+    }
+
+    /**
+     * Returns gen[i], creating it empty if needed.
+     */
+    protected BitSet gen(int i) {
+        if (gen[i] == null) {
+            gen[i] = new BitSet();
+        }
+        return gen[i];
+    }
+
+    /**
+     * Returns kill[i], creating it empty if needed.
+     */
+    protected BitSet kill(int i) {
+        if (kill[i] == null) {
+            kill[i] = new BitSet();
+        }
+        return kill[i];
+    }
+
+    /**
+     * Number of sweeps over the worklist the solver needed to converge.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Number of times a block's transfer function was evaluated.
+     */
+    public int getVisits() {
+        return visits;
+    }
+
+    /**
+     * Number of basic blocks the solver works on.
+     */
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    /**
+     * Returns the number of a node, or null if it isn't in the graph.
+     */
+    protected Integer index(Node n) {
+        return blocks.getIndex(n);
+    }
+
+    /**
+     * Value entering the node numbered i, which must not be modified.
+     */
+    protected BitSet in(int i) {
+        return value(i, 0);
+    }
+
+    /**
+     * Value leaving the node numbered i, which must not be modified.
+     */
+    protected BitSet out(int i) {
+        return value(i, 1);
+    }
+
+    /**
+     * Computes result from input for the node numbered i. The default is
+     * the gen/kill transfer function result = gen[i] U (input - kill[i]).
+     *
+     * @param i
+     * @param input Value flowing into the node (in for forward problems).
+     * @param result Cleared set that receives the node's output.
+     */
+    protected void transfer(int i, BitSet input, BitSet result) {
+        result.or(input);
+        if (kill[i] != null) {
+            result.andNot(kill[i]);
+        }
+        if (gen[i] != null) {
+            result.or(gen[i]);
+        }
+    }
+
+    /**
+     * Value flowing into the entry and the other nodes without predecessors
+     * (forward), or into the nodes without successors (backward), met with
+     * the values along the edges there are. Empty by default.
+     *
+     * @param b Cleared set that receives the boundary value.
+     */
+    protected void boundary(BitSet b) {
+    }
+
+    /**
+     * Solves the dataflow equations for a universe of the given size.
+     *
+     * @param universe
+     */
+    protected void solve(int universe) {
+        this.universe = universe;
+
+        boolean forward = (direction == Direction.FORWARD);
+        int count = blocks.size();
+        in = new BitSet[count];
+        out = new BitSet[count];
+        blockGen = new BitSet[count];
+        blockKill = new BitSet[count];
+        for (int b = 0; b < count; b++) {
+            in[b] = new BitSet();
+            out[b] = new BitSet();
+            // The meet over an empty set of edges is the top element:
+            if (meet == Meet.INTERSECTION) {
+                (forward ? out : in)[b].set(0, universe);
+            }
+        }
+
+        BitSet[] input = forward ? in : out;
+        BitSet[] result = forward ? out : in;
+        BitSet work = new BitSet(count);
+        work.set(0, count);
+        BitSet value = new BitSet();
+        iterations = visits = 0;
+        while (!work.isEmpty()) {
+            iterations++;
+            int b = forward ? work.nextSetBit(0) : work.previousSetBit(count - 1);
+            while (b >= 0) {
+                work.clear(b);
+                visits++;
+
+                // input[B] = meet of the values flowing along the edges; the
+                // entry block also has the boundary flowing in, even when
+                // it heads a loop:
+                int[] edges = forward ? blocks.getPreds(b) : blocks.getSuccs(b);
+                boolean entry = (edges == null || (forward && b == 0));
+                BitSet inputB = input[b];
+                inputB.clear();
+                if (entry) {
+                    boundary(inputB);
+                }
+                if (edges != null) {
+                    for (int k = 0; k < edges.length; k++) {
+                        BitSet v = result[edges[k]];
+                        if ((k == 0 && !entry) || meet == Meet.UNION) {
+                            inputB.or(v);
+                        } else {
+                            inputB.and(v);
+                        }
+                    }
+                }
+
+                // result[B] = f(input[B]):
+                value.clear();
+                transferBlock(b, inputB, value);
+                if (!value.equals(result[b])) {
+                    result[b].clear();
+                    result[b].or(value);
+
+                    int[] next = forward ? blocks.getSuccs(b) : blocks.getPreds(b);
+                    if (next != null) {
+                        for (int s : next) {
+                            work.set(s);
+                        }
+                    }
+                }
+
+                b = forward ? work.nextSetBit(b + 1) : work.previousSetBit(b - 1);
+            }
+        }
+    }
+
+    /**
+     * Makes the blocks whose in (or out) sets are equal share one copy of
+     * it, trimmed to size.
+     */
+    protected void compact() {
+        Map<BitSet, BitSet> canonical = new HashMap<BitSet, BitSet>();
+        for (BitSet[] sets : new BitSet[][] {in, out}) {
+            for (int b = 0; b < sets.length; b++) {
+                BitSet c = canonical.get(sets[b]);
+                if (c == null) {
+                    c = (BitSet)sets[b].clone();
+                    canonical.put(c, c);
+                }
+                sets[b] = c;
+            }
+        }
+        expanded = -1;
+    }
+
+    /**
+     * Estimated heap size in bytes of the sets the solution is kept in
+     * (node gen and kill, block in, out and summaries, with the arrays
+     * holding them), counting a shared set once.
+     *
+     * @return
+     */
+    public long getFootprint() {
+        // Object and array headers, BitSet fields, references:
+        final int header = 16, bitset = 24, reference = 4;
+
+        Set<BitSet> seen = Collections.newSetFromMap(new IdentityHashMap<BitSet, Boolean>());
+        long bytes = 0;
+        for (BitSet[] sets : new BitSet[][] {gen, kill, in, out, blockGen, blockKill}) {
+            if (sets == null) {
+                continue;
+            }
+            bytes += header + reference * sets.length;
+            for (BitSet b : sets) {
+                if (b != null && seen.add(b)) {
+                    bytes += bitset + header + b.size() / 8;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * result = f(input) for the block b: the transfer function of its only
+     * node, or its summary.
+     */
+    private void transferBlock(int b, BitSet input, BitSet result) {
+        int start = blocks.getFirst(b);
+        int end = blocks.getFirst(b + 1);
+        if (end - start == 1) {
+            transfer(start, input, result);
+            return;
+        }
+        if (blockGen[b] == null) {
+            BitSet full = new BitSet();
+            full.set(0, universe);
+            blockGen[b] = walk(b, new BitSet());
+            blockKill[b] = full;
+            blockKill[b].andNot(walk(b, full));
+        }
+        result.or(input);
+        result.andNot(blockKill[b]);
+        result.or(blockGen[b]);
+    }
+
+    /**
+     * Returns the result of the nodes of block b, in the flow direction,
+     * for the given input.
+     */
+    private BitSet walk(int b, BitSet input) {
+        boolean forward = (direction == Direction.FORWARD);
+        int start = blocks.getFirst(b);
+        int end = blocks.getFirst(b + 1);
+        BitSet current = input;
+        for (int k = 0; k < end - start; k++) {
+            BitSet next = new BitSet();
+            transfer(forward ? start + k : end - 1 - k, current, next);
+            current = next;
+        }
+        return current;
+    }
+
+    /**
+     * Value entering (side 0) or leaving (side 1) the node numbered i,
+     * derived from the values of its block.
+     */
+    private BitSet value(int i, int side) {
+        boolean forward = (direction == Direction.FORWARD);
+        int b = blocks.getBlock(i);
+        int start = blocks.getFirst(b);
+        int end = blocks.getFirst(b + 1);
+        if (end - start == 1) {
+            return (side == 0) ? in[b] : out[b];
+        }
+
+        if (expanded != b) {
+            // values[0] flows into the block, values[k] out of its k-th
+            // node in the flow direction:
+            int length = end - start;
+            values = new BitSet[length + 1];
+            values[0] = forward ? in[b] : out[b];
+            for (int k = 0; k < length - 1; k++) {
+                values[k + 1] = new BitSet();
+                transfer(forward ? start + k : end - 1 - k, values[k],
+                    values[k + 1]);
+            }
+            values[length] = forward ? out[b] : in[b];
+            expanded = b;
+        }
+
+        // The in set of a node is on its input side going forward, on its
+        // output side going backward:
+        int k = forward ? i - start : end - 1 - i;
+        return values[k + (forward ? side : 1 - side)];
+    }
+}
@@ -0,0 +1,153 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import temp.Label;
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Measures the memory the dataflow solutions take: builds reaching
+ * definitions (every definition) and liveness for random methods of a few
+ * sizes and prints, per flow graph node, the heap they keep alive and the
+ * estimate of getFootprint().
+ *     The methods are straight runs of moves and arithmetic over 200
+ * temporaries, cut by labels and by "cmp" and conditional jumps to random
+ * labels, so most definitions reach far. Run with a heap of a few GB:
+ *
+ *     java -Xmx4g optimization.DataflowFootprint [size...]
+ */
+public class DataflowFootprint {
+
+    private static final int TEMPS = 200;
+
+    // Analyses built for each measure, to average over:
+    private static final int COPIES = 3;
+
+    public static void main(String[] args) {
+        int[] sizes = {5000, 50000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int size : sizes) {
+            List<Instr> l = method(new Random(size), size);
+            AssemFlowGraph cfg = new AssemFlowGraph(l);
+            int nodes = l.size();
+
+            // Keep the analyses reachable while measuring:
+            ArrayList<DataflowAnalysis> kept = new ArrayList<DataflowAnalysis>();
+            long before = used();
+            for (int k = 0; k < COPIES; k++) {
+                kept.add(new ReachingDefinition(l, cfg, true));
+            }
+            long reaching = used();
+            for (int k = 0; k < COPIES; k++) {
+                kept.add(new Liveness(cfg));
+            }
+            long live = used();
+
+            System.out.println(nodes + " nodes, " + kept.get(0).getBlockCount() +
+                " blocks, bytes per node:" +
+                " reaching definitions " + (reaching - before) / COPIES / nodes +
+                " (estimate " + kept.get(0).getFootprint() / nodes + ")," +
+                " liveness " + (live - reaching) / COPIES / nodes +
+                " (estimate " + kept.get(COPIES).getFootprint() / nodes + ")");
+        }
+    }
+
+    /**
+     * Heap in use after a few collections.
+     */
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int k = 0; k < 4; k++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns a random method of size statements (also used by the other
+     * benchmarks of the package).
+     */
+    static List<Instr> method(Random r, int size) {
+        Temp[] t = new Temp[TEMPS];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = new Temp();
+        }
+        Label[] labels = new Label[size / 5 + 1];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = new Label();
+        }
+
+        ArrayList<Instr> code = new ArrayList<Instr>();
+        for (Temp x : t) {
+            code.add(new X86Instr(Opcode.MOV, Operand.reg(x), Operand.imm(0)));
+        }
+        int placed = 0;
+        for (int i = 0; i < size; i++) {
+            Temp a = t[r.nextInt(t.length)];
+            Temp b = t[r.nextInt(t.length)];
+            int k = r.nextInt(10);
+            // Once every label is placed, a jump instead:
+            if (k == 7 && placed == labels.length) {
+                k = 8;
+            }
+            switch (k) {
+                case 0:
+                case 1:
+                case 2:
+                    code.add(new X86Instr(Opcode.MOV, Operand.reg(a),
+                        Operand.imm(r.nextInt(10))));
+                    break;
+                case 3:
+                case 4:
+                    code.add(new assem.MOVE(a, b));
+                    break;
+                case 5:
+                    code.add(new X86Instr(Opcode.ADD, Operand.reg(a), Operand.reg(b)));
+                    break;
+                case 6:
+                    code.add(new X86Instr(Opcode.XOR, Operand.reg(a),
+                        Operand.imm(r.nextInt(4))));
+                    break;
+                case 7:
+                    code.add(label(labels[placed++]));
+                    break;
+                case 8:
+                    Label next = new Label();
+                    code.add(new X86Instr(Opcode.CMP, Operand.reg(a), Operand.reg(b)));
+                    code.add(new X86Instr(Opcode.JL, new List<Label>(
+                        labels[r.nextInt(labels.length)], new List<Label>(next, null))));
+                    code.add(label(next));
+                    break;
+                default:
+                    code.add(new X86Instr(Opcode.SUB, Operand.reg(a), Operand.reg(b)));
+                    break;
+            }
+        }
+        while (placed < labels.length) {
+            code.add(label(labels[placed++]));
+        }
+
+        List<Instr> l = null;
+        for (int i = code.size() - 1; i >= 0; i--) {
+            l = new List<Instr>(code.get(i), l);
+        }
+        return l;
+    }
+
+    private static Instr label(Label l) {
+        return new assem.LABEL(l.toString() + ":", l);
+    }
+}
@@ -0,0 +1,125 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Frame;
+import x86.X86Instr;
+
+/**
+ * Dead Code Elimination:
+ *     An instruction "d : t <- x" whose only effect is to define t can be
+ * deleted if t is not live on exit from d.
+ *     Deleting d may make the definitions of the temporaries it used dead
+ * too, so liveness is recomputed until nothing else can be deleted.
+ *     Nothing reads the machine registers at the end of the method body
+ * (the return value in EAX, the callee-save registers, ESP), so their
+ * definitions are never deleted.
+ */
+public class DeadCodeElimination {
+
+    private final Set<Temp> machine;
+    private int removed;
+
+    /**
+     * @param frame frame of the method, which gives the machine registers
+     */
+    public DeadCodeElimination(Frame frame) {
+        machine = new HashSet<Temp>();
+        for (Temp r : frame.registers()) {
+            machine.add(r);
+        }
+    }
+
+    /**
+     * Deletes the dead instructions of l, in place (a list whose every
+     * instruction would be deleted is left as it is).
+     *
+     * @param l
+     * @return true if anything was deleted
+     */
+    public boolean optimize(List<Instr> l) {
+        boolean changed = false;
+        while (l != null && sweep(l)) {
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Number of instructions deleted so far.
+     *
+     * @return
+     */
+    public int getRemovedCount() {
+        return removed;
+    }
+
+    /**
+     * One pass over l with the liveness of l: returns true if some
+     * instruction was deleted.
+     */
+    private boolean sweep(List<Instr> l) {
+        AssemFlowGraph cfg = new AssemFlowGraph(l);
+        Liveness liveness = new Liveness(cfg);
+
+        ArrayList<Instr> code = new ArrayList<Instr>();
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for (Node n : cfg.nodes()) {
+            code.add(cfg.getInstr(n));
+            nodes.add(n);
+        }
+
+        ArrayList<Instr> kept = new ArrayList<Instr>(code.size());
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (!removable(instr) ||
+                isLive(instr.def(), liveness, liveness.getOutBits(nodes.get(i))) ||
+                (instr instanceof X86Instr &&
+                 Instrs.changesFlags((X86Instr)instr) &&
+                 !Instrs.flagsDead(code, i + 1))) {
+                kept.add(instr);
+            }
+        }
+
+        if (kept.size() == code.size() || kept.isEmpty()) {
+            return false;
+        }
+        removed += code.size() - kept.size();
+        Instrs.replace(l, kept);
+        return true;
+    }
+
+    /**
+     * Whether instr only defines temporaries other than machine registers
+     * (see Instrs.writesOnlyRegisters).
+     */
+    private boolean removable(Instr instr) {
+        if (instr.def() == null) {
+            return false;
+        }
+        for (Temp t : instr.def()) {
+            if (machine.contains(t)) {
+                return false;
+            }
+        }
+        return Instrs.writesOnlyRegisters(instr);
+    }
+
+    private static boolean isLive(List<Temp> defs, Liveness liveness,
+        BitSet out) {
+        for (Temp t : defs) {
+            if (out.get(liveness.getTempIndex(t))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
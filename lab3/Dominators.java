@@ -0,0 +1,184 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Dominator tree of the nodes reachable from the entry of a flow graph (its
+ * first node). A node d dominates n if every path from the entry to n goes
+ * through d.
+ *     The immediate dominators are computed with the iterative algorithm of
+ * Cooper, Harvey and Kennedy ("A Simple, Fast Dominance Algorithm"): nodes
+ * are numbered in reverse postorder, and each node's idom is refined to the
+ * nearest common ancestor, in the tree built so far, of its processed
+ * predecessors until nothing changes (two passes for reducible graphs).
+ *     The tree is then numbered depth-first, so dominates() compares two
+ * intervals.
+ */
+public class Dominators {
+
+    // Reachable nodes in reverse postorder, and their numbers:
+    private Node[] nodes;
+    private Map<Node, Integer> number;
+
+    // Immediate dominator of each node, by number (the entry is its own):
+    private int[] idom;
+
+    // Preorder interval of each node in the dominator tree:
+    private int[] enter;
+    private int[] exit;
+
+    public Dominators(AssemFlowGraph cfg) {
+        nodes = new Node[0];
+        number = new HashMap<Node, Integer>();
+        if (cfg.nodes() == null) {
+            idom = enter = exit = new int[0];
+            return;
+        }
+
+        nodes = GraphOrder.reversePostorder(cfg.nodes().head);
+        for (int i = 0; i < nodes.length; i++) {
+            number.put(nodes[i], i);
+        }
+
+        idom = new int[nodes.length];
+        for (int i = 1; i < nodes.length; i++) {
+            idom[i] = -1;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < nodes.length; i++) {
+                int d = -1;
+                for (Node p : nodes[i].getPreds()) {
+                    Integer j = number.get(p);
+                    if (j == null || idom[j] < 0) {
+                        continue;
+                    }
+                    d = (d < 0) ? j : intersect(j, d);
+                }
+                if (idom[i] != d) {
+                    idom[i] = d;
+                    changed = true;
+                }
+            }
+        }
+
+        numberTree();
+    }
+
+    /**
+     * Nearest common ancestor of a and b in the tree built so far: the
+     * deeper one (larger number) climbs until they meet.
+     */
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (a > b) {
+                a = idom[a];
+            }
+            while (b > a) {
+                b = idom[b];
+            }
+        }
+        return a;
+    }
+
+    private void numberTree() {
+        int n = nodes.length;
+        enter = new int[n];
+        exit = new int[n];
+        if (n == 0) {
+            return;
+        }
+
+        // Children of each node, in reverse postorder:
+        int[] first = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            first[i] = next[i] = -1;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            next[i] = first[idom[i]];
+            first[idom[i]] = i;
+        }
+
+        // Iterative depth-first walk from the entry:
+        int counter = 0;
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        int[] child = new int[n];
+        stack.add(0);
+        enter[0] = counter++;
+        child[0] = first[0];
+        while (!stack.isEmpty()) {
+            int top = stack.get(stack.size() - 1);
+            int c = child[top];
+            if (c >= 0) {
+                child[top] = next[c];
+                enter[c] = counter++;
+                child[c] = first[c];
+                stack.add(c);
+            } else {
+                exit[top] = counter++;
+                stack.remove(stack.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Whether n can be reached from the entry.
+     *
+     * @param n
+     * @return
+     */
+    public boolean isReachable(Node n) {
+        return number.containsKey(n);
+    }
+
+    /**
+     * Returns the immediate dominator of n, or null for the entry and for
+     * unreachable nodes.
+     *
+     * @param n
+     * @return
+     */
+    public Node getIdom(Node n) {
+        Integer i = number.get(n);
+        if (i == null || i == 0) {
+            return null;
+        }
+        return nodes[idom[i]];
+    }
+
+    /**
+     * Number of n in a preorder walk of the dominator tree (a node comes
+     * after its dominators), or -1 if n is unreachable.
+     *
+     * @param n
+     * @return
+     */
+    public int getPreorder(Node n) {
+        Integer i = number.get(n);
+        return (i == null) ? -1 : enter[i];
+    }
+
+    /**
+     * Whether a dominates b (every node dominates itself). False if either
+     * is unreachable.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public boolean dominates(Node a, Node b) {
+        Integer i = number.get(a);
+        Integer j = number.get(b);
+        if (i == null || j == null) {
+            return false;
+        }
+        return enter[i] <= enter[j] && exit[j] <= exit[i];
+    }
+}
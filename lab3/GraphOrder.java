@@ -0,0 +1,100 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import util.List;
+
+/**
+ * Node orderings of a flow graph used to drive the dataflow solvers.
+ */
+class GraphOrder {
+
+    /**
+     * Returns every node of the graph in reverse postorder of a depth-first
+     * search started at the entry (the first node), so the entry comes
+     * first. Nodes that can't be reached from the entry follow: each node
+     * not numbered yet, in program order, starts another search whose
+     * reverse postorder is appended.
+     *
+     * @param cfg
+     * @return
+     */
+    static Node[] reversePostorder(AssemFlowGraph cfg) {
+        ArrayList<Node> rpo = new ArrayList<Node>();
+        Set<Node> visited = new HashSet<Node>();
+
+        ArrayList<Node> post = new ArrayList<Node>();
+        for (Node root : cfg.nodes()) {
+            if (!visited.contains(root)) {
+                post.clear();
+                postorder(root, visited, post);
+                for (int i = post.size() - 1; i >= 0; i--) {
+                    rpo.add(post.get(i));
+                }
+            }
+        }
+
+        return rpo.toArray(new Node[rpo.size()]);
+    }
+
+    /**
+     * Returns the nodes reachable from entry in reverse postorder of a
+     * depth-first search started at entry.
+     *
+     * @param entry
+     * @return
+     */
+    static Node[] reversePostorder(Node entry) {
+        ArrayList<Node> post = new ArrayList<Node>();
+        postorder(entry, new HashSet<Node>(), post);
+        return reverse(post);
+    }
+
+    private static Node[] reverse(ArrayList<Node> post) {
+        Node[] rpo = new Node[post.size()];
+        for (int i = 0; i < rpo.length; i++) {
+            rpo[i] = post.get(post.size() - 1 - i);
+        }
+        return rpo;
+    }
+
+    /**
+     * Iterative depth-first search (methods can be too big for recursion)
+     * that appends nodes to post as they are finished.
+     */
+    private static void postorder(Node root, Set<Node> visited,
+        ArrayList<Node> post) {
+        ArrayList<Node> stack = new ArrayList<Node>();
+        ArrayList<Iterator<Node>> succs = new ArrayList<Iterator<Node>>();
+
+        visited.add(root);
+        stack.add(root);
+        succs.add(iterator(root.getSuccs()));
+        while (!stack.isEmpty()) {
+            int top = stack.size() - 1;
+            Iterator<Node> it = succs.get(top);
+            if (it.hasNext()) {
+                Node s = it.next();
+                if (visited.add(s)) {
+                    stack.add(s);
+                    succs.add(iterator(s.getSuccs()));
+                }
+            } else {
+                post.add(stack.remove(top));
+                succs.remove(top);
+            }
+        }
+    }
+
+    private static Iterator<Node> iterator(List<Node> l) {
+        if (l == null) {
+            return new ArrayList<Node>().iterator();
+        }
+        return l.iterator();
+    }
+}
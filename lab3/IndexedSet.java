@@ -0,0 +1,67 @@
+package optimization;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only Set view over a BitSet of densely numbered elements (nodes,
+ * temporaries...). No element is copied: iteration and membership go
+ * straight to the bits and the numbering, so the view is only meaningful
+ * while neither changes. An analysis that updates its solution after it is
+ * built (ReachingDefinition) hands out copies instead.
+ */
+class IndexedSet<T> extends AbstractSet<T> {
+
+    private final BitSet bits;
+    private final T[] elements;
+    private final Map<T, Integer> number;
+
+    IndexedSet(BitSet bits, T[] elements, Map<T, Integer> number) {
+        this.bits = bits;
+        this.elements = elements;
+        this.number = number;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Integer i = number.get(o);
+        return i != null && bits.get(i);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bits.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return bits.cardinality();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int next = bits.nextSetBit(0);
+
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            public T next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                T e = elements[next];
+                next = bits.nextSetBit(next + 1);
+                return e;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,130 @@
+package optimization;
+
+import java.util.ArrayList;
+
+import assem.Instr;
+import util.List;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Helpers shared by the passes that delete or replace instructions.
+ */
+class Instrs {
+
+    /**
+     * Stores code into the cells of l, which must not be empty, adding or
+     * dropping cells at the end as needed: l itself is the result.
+     *
+     * @param l
+     * @param code
+     */
+    static void replace(List<Instr> l, ArrayList<Instr> code) {
+        List<Instr> c = l;
+        for (int k = 0; ; k++) {
+            c.head = code.get(k);
+            if (k + 1 == code.size()) {
+                break;
+            }
+            if (c.tail == null) {
+                c.tail = new List<Instr>(null, null);
+            }
+            c = c.tail;
+        }
+        c.tail = null;
+    }
+
+    /**
+     * Whether instr only computes the registers it defines: a move between
+     * temporaries, or an instruction writing its register operand (no
+     * stores, pushes, calls, jumps or divisions, which can trap).
+     *
+     * @param instr
+     * @return
+     */
+    static boolean writesOnlyRegisters(Instr instr) {
+        if (instr instanceof assem.MOVE) {
+            return true;
+        }
+        if (!(instr instanceof X86Instr)) {
+            return false;
+        }
+        X86Instr x = (X86Instr)instr;
+        return x.getOpcode().writesDestination() &&
+            x.getDestination() instanceof Operand.Reg;
+    }
+
+    /**
+     * Whether instr may write memory: a store, a push or a call.
+     *
+     * @param instr
+     * @return
+     */
+    static boolean writesMemory(Instr instr) {
+        if (!(instr instanceof X86Instr)) {
+            return false;
+        }
+        X86Instr x = (X86Instr)instr;
+        Opcode op = x.getOpcode();
+        return op == Opcode.PUSH || op == Opcode.CALL ||
+            (op.writesDestination() && x.getDestination() instanceof Operand.Mem);
+    }
+
+    /**
+     * True if no conditional jump can read the flags as they are before
+     * code[from]: one sets them first, going down the fall-through path
+     * (unknown after an unconditional jump).
+     *
+     * @param code
+     * @param from
+     * @return
+     */
+    static boolean flagsDead(ArrayList<Instr> code, int from) {
+        for (int i = from; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (!(instr instanceof X86Instr)) {
+                continue;
+            }
+            X86Instr x = (X86Instr)instr;
+            Opcode op = x.getOpcode();
+            if (op.isConditionalJump() || op == Opcode.JMP) {
+                return false;
+            }
+            if (setsFlags(x)) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether x sets all the flags the conditional jumps read (shifts by 0
+     * or by a register may leave them; inc and dec leave CF).
+     *
+     * @param x
+     * @return
+     */
+    static boolean setsFlags(X86Instr x) {
+        Opcode op = x.getOpcode();
+        if (op == Opcode.SHL || op == Opcode.SHR || op == Opcode.SAR) {
+            return x.getSource() instanceof Operand.Imm &&
+                (((Operand.Imm)x.getSource()).value & 31) != 0;
+        }
+        return op.isArithmetic() || op == Opcode.CMP || op == Opcode.TEST ||
+            op == Opcode.NEG || op == Opcode.CALL || op == Opcode.MUL ||
+            op == Opcode.WIDE_IMUL || op == Opcode.DIV || op == Opcode.IDIV;
+    }
+
+    /**
+     * Whether x may change the flags at all.
+     *
+     * @param x
+     * @return
+     */
+    static boolean changesFlags(X86Instr x) {
+        Opcode op = x.getOpcode();
+        return op != Opcode.MOV && op != Opcode.LEA && op != Opcode.PUSH &&
+            op != Opcode.CDQ && op != Opcode.JMP && !op.isConditionalJump();
+    }
+}
@@ -0,0 +1,102 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import temp.Temp;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Liveness Analysis:
+ *     A temporary is live at a point if its current value may still be read
+ * along some path from that point:
+ *     in[n] = use[n] U (out[n] - def[n])
+ *     out[n] = U_{s \in succ[n]} in[s]
+ */
+public class Liveness extends DataflowAnalysis {
+
+    // Dense numbering of the temporaries:
+    private Temp[] temps;
+    private Map<Temp, Integer> tempIndex;
+
+    public Liveness(AssemFlowGraph cfg) {
+        super(cfg, Direction.BACKWARD, Meet.UNION);
+
+        ArrayList<Temp> all = new ArrayList<Temp>();
+        tempIndex = new HashMap<Temp, Integer>();
+        for (int i = 0; i < nodes.length; i++) {
+            // gen[n] = use[n]:
+            if (cfg.getUsed(nodes[i]) != null) {
+                for (Temp t : cfg.getUsed(nodes[i])) {
+                    gen(i).set(number(t, all));
+                }
+            }
+
+            // kill[n] = def[n]:
+            if (cfg.getDefined(nodes[i]) != null) {
+                for (Temp t : cfg.getDefined(nodes[i])) {
+                    kill(i).set(number(t, all));
+                }
+            }
+        }
+        temps = all.toArray(new Temp[all.size()]);
+
+        solve(temps.length);
+        compact();
+    }
+
+    private int number(Temp t, ArrayList<Temp> all) {
+        Integer i = tempIndex.get(t);
+        if (i == null) {
+            i = all.size();
+            tempIndex.put(t, i);
+            all.add(t);
+        }
+        return i;
+    }
+
+    public Set<Temp> getIn(Node n) {
+        return new IndexedSet<Temp>(getInBits(n), temps, tempIndex);
+    }
+
+    public Set<Temp> getOut(Node n) {
+        return new IndexedSet<Temp>(getOutBits(n), temps, tempIndex);
+    }
+
+    /**
+     * Temporaries live on entry to n, as a BitSet of temporary numbers.
+     */
+    public BitSet getInBits(Node n) {
+        return in(index(n));
+    }
+
+    /**
+     * Temporaries live on exit from n, as a BitSet of temporary numbers.
+     */
+    public BitSet getOutBits(Node n) {
+        return out(index(n));
+    }
+
+    /**
+     * Number of temporaries used or defined in the method.
+     */
+    public int getTempCount() {
+        return temps.length;
+    }
+
+    public Temp getTemp(int i) {
+        return temps[i];
+    }
+
+    /**
+     * Returns the number of t, or -1 if t doesn't appear in the method.
+     */
+    public int getTempIndex(Temp t) {
+        Integer i = tempIndex.get(t);
+        return (i == null) ? -1 : i;
+    }
+}
@@ -0,0 +1,463 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import temp.Label;
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Frame;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Loop-Invariant Code Motion:
+ *     An instruction "d : t <- x op y" in a loop L is invariant if each of
+ * its operands is, that is if all the definitions of the operand that reach
+ * d are outside L, or if only one does and it is an invariant instruction
+ * of L that dominates d.
+ *     Invariant instructions that only compute the register they define
+ * are moved to a preheader of L, a new block that runs once before the
+ * header, if the value of t is the same everywhere it is read:
+ *     - t is not live on entry to the header;
+ *     - every definition of t in L is moved;
+ *     - the uses of t left in L, and the exits of L where t is live, are
+ *     only reached by the last definition moved.
+ *     Loads are moved too if L stores nothing (no mov to memory, push or
+ * call), and if they address the frame or run on every trip through L, so
+ * moving them adds no fault.
+ *     The reaching definitions are those of the loop being moved from, so
+ * every move starts over with the flow graph of the new code: loops are
+ * tried innermost first, and the code moved out of an inner loop can move
+ * again out of the loops around it.
+ */
+public class LoopInvariantCodeMotion {
+
+    private final Set<Temp> machine;
+    private final Temp fp;
+    private final Temp sp;
+    private int hoisted;
+
+    // Analyses of the code being optimized:
+    private ArrayList<Instr> code;
+    private ArrayList<Node> nodes;
+    private Map<Node, Integer> position;
+    private ReachingDefinition dfa;
+    private UseDefChains chains;
+    private Liveness liveness;
+    private Dominators dom;
+
+    /**
+     * @param frame frame of the method, which gives the machine registers
+     */
+    public LoopInvariantCodeMotion(Frame frame) {
+        machine = new HashSet<Temp>();
+        for (Temp r : frame.registers()) {
+            machine.add(r);
+        }
+        fp = frame.FP();
+        sp = frame.SP();
+    }
+
+    /**
+     * Moves the invariant instructions of the loops of l out of them, in
+     * place.
+     *
+     * @param l
+     * @return true if an instruction was moved
+     */
+    public boolean optimize(List<Instr> l) {
+        boolean changed = false;
+        while (l != null && hoist(l)) {
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Number of instructions moved so far.
+     *
+     * @return
+     */
+    public int getHoistedCount() {
+        return hoisted;
+    }
+
+    /**
+     * Moves the invariant instructions of the innermost loop of l that has
+     * any: returns false if no loop has.
+     */
+    private boolean hoist(List<Instr> l) {
+        AssemFlowGraph cfg = new AssemFlowGraph(l);
+        code = new ArrayList<Instr>();
+        nodes = new ArrayList<Node>();
+        position = new HashMap<Node, Integer>();
+        for (Node n : cfg.nodes()) {
+            position.put(n, code.size());
+            code.add(cfg.getInstr(n));
+            nodes.add(n);
+        }
+        dom = new Dominators(cfg);
+        Loops loops = new Loops(cfg, dom);
+        if (loops.getLoops().isEmpty()) {
+            return false;
+        }
+        dfa = new ReachingDefinition(l, cfg, true);
+        chains = new UseDefChains(cfg, dfa);
+        liveness = new Liveness(cfg);
+
+        for (Loops.Loop loop : loops.getLoops()) {
+            ArrayList<Node> moved = invariants(loop);
+            if (moved.isEmpty()) {
+                continue;
+            }
+            ArrayList<Instr> result = preheader(loop, moved);
+            if (result != null) {
+                hoisted += moved.size();
+                Instrs.replace(l, result);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the instructions of loop that can be moved to its preheader,
+     * in the order they must run there.
+     */
+    private ArrayList<Node> invariants(Loops.Loop loop) {
+        boolean stores = false;
+        for (Node n : loop.getBody()) {
+            stores |= Instrs.writesMemory(instr(n));
+        }
+
+        // Temporaries with a definition that must stay in the loop:
+        Set<Temp> banned = new HashSet<Temp>();
+        while (true) {
+            ArrayList<Node> moved = candidates(loop, stores, banned);
+            Temp bad = validate(loop, moved);
+            if (bad == null) {
+                return moved;
+            }
+            banned.add(bad);
+        }
+    }
+
+    /**
+     * The invariant instructions of loop that may be moved one by one (no
+     * temporary in banned), sorted in dominator tree preorder.
+     */
+    private ArrayList<Node> candidates(Loops.Loop loop, boolean stores,
+        Set<Temp> banned) {
+        Set<Node> invariant = new HashSet<Node>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Node n : loop.getBody()) {
+                if (!invariant.contains(n) && movable(loop, n, stores, banned) &&
+                    operandsInvariant(loop, n, invariant)) {
+                    invariant.add(n);
+                    changed = true;
+                }
+            }
+        }
+
+        ArrayList<Node> moved = new ArrayList<Node>(invariant);
+        Collections.sort(moved, new Comparator<Node>() {
+            public int compare(Node a, Node b) {
+                return dom.getPreorder(a) - dom.getPreorder(b);
+            }
+        });
+        return moved;
+    }
+
+    /**
+     * Whether n, taken alone, can run before loop instead of in it.
+     */
+    private boolean movable(Loops.Loop loop, Node n, boolean stores,
+        Set<Temp> banned) {
+        Instr instr = instr(n);
+        if (!Instrs.writesOnlyRegisters(instr) || !dom.isReachable(n)) {
+            return false;
+        }
+        List<Temp> def = instr.def();
+        if (def == null || def.tail != null) {
+            return false;
+        }
+        Temp t = def.head;
+        if (machine.contains(t) || banned.contains(t) ||
+            liveness.getInBits(loop.getHeader()).get(liveness.getTempIndex(t))) {
+            return false;
+        }
+        if (instr instanceof assem.MOVE) {
+            return true;
+        }
+
+        X86Instr x = (X86Instr)instr;
+        if (!t.equals(Operand.temp(x.getDestination()))) {
+            return false;
+        }
+        if (Instrs.changesFlags(x) &&
+            !Instrs.flagsDead(code, position.get(n) + 1)) {
+            return false;
+        }
+        if (x.getSource() instanceof Operand.Mem) {
+            Operand.Mem m = (Operand.Mem)x.getSource();
+            // lea only computes the address:
+            if (x.getOpcode() != Opcode.LEA) {
+                return !stores &&
+                    ((m.index == null && (fp.equals(m.base) || sp.equals(m.base))) ||
+                     dominatesExits(loop, n));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether every temporary n reads is only defined outside loop, or by
+     * a single instruction of invariant that dominates n.
+     */
+    private boolean operandsInvariant(Loops.Loop loop, Node n,
+        Set<Node> invariant) {
+        if (instr(n).use() == null) {
+            return true;
+        }
+        for (Temp u : instr(n).use()) {
+            Node[] defs = chains.getDefs(n, u);
+            boolean outside = true;
+            for (Node d : defs) {
+                outside &= !loop.contains(d);
+            }
+            if (outside) {
+                continue;
+            }
+            if (defs.length != 1 || !invariant.contains(defs[0]) ||
+                !dom.dominates(defs[0], n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that moving moved, in this order, keeps the value of every
+     * temporary it defines wherever that is read: returns one whose
+     * definitions can't all move, or null if they all can.
+     */
+    private Temp validate(Loops.Loop loop, ArrayList<Node> moved) {
+        Set<Node> set = new HashSet<Node>(moved);
+
+        // Last definition of each temporary, in the preheader order: every
+        // definition read in the preheader must be the last one before.
+        Map<Temp, Node> last = new HashMap<Temp, Node>();
+        for (Node n : moved) {
+            if (instr(n).use() != null) {
+                for (Temp u : instr(n).use()) {
+                    Node[] defs = chains.getDefs(n, u);
+                    boolean inside = last.containsKey(u);
+                    for (Node d : defs) {
+                        inside |= set.contains(d);
+                    }
+                    if (inside && (defs.length != 1 || last.get(u) != defs[0])) {
+                        return u;
+                    }
+                }
+            }
+            last.put(instr(n).def().head, n);
+        }
+
+        for (Node n : loop.getBody()) {
+            Instr instr = instr(n);
+            // Every definition of t in the loop moves:
+            if (!set.contains(n) && instr.def() != null) {
+                for (Temp t : instr.def()) {
+                    if (last.containsKey(t)) {
+                        return t;
+                    }
+                }
+            }
+            // The uses left see the last one:
+            if (!set.contains(n) && instr.use() != null) {
+                for (Temp u : instr.use()) {
+                    Node d = last.get(u);
+                    if (d != null && chains.getUniqueDef(n, u) != d) {
+                        return u;
+                    }
+                }
+            }
+            // So do the exits where t is live:
+            if (n.getSuccs() == null) {
+                continue;
+            }
+            for (Node s : n.getSuccs()) {
+                if (loop.contains(s)) {
+                    continue;
+                }
+                BitSet live = liveness.getInBits(s);
+                BitSet reaching = dfa.getInBits(s);
+                for (Map.Entry<Temp, Node> e : last.entrySet()) {
+                    if (!live.get(liveness.getTempIndex(e.getKey()))) {
+                        continue;
+                    }
+                    BitSet defs = (BitSet)dfa.getDefinitionBits(e.getKey()).clone();
+                    defs.and(reaching);
+                    if (defs.cardinality() != 1 ||
+                        dfa.getDefinition(defs.nextSetBit(0)) != e.getValue()) {
+                        return e.getKey();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the code with moved in a preheader of loop ("P:" and moved,
+     * with the jumps from outside the loop to the header retargeted to P),
+     * or null if there is no place for one.
+     */
+    private ArrayList<Instr> preheader(Loops.Loop loop, ArrayList<Node> moved) {
+        int h = position.get(loop.getHeader());
+        if (!(code.get(h) instanceof assem.LABEL)) {
+            return null;
+        }
+        Label header = ((assem.LABEL)code.get(h)).getLabel();
+
+        // The flags the moved code may change must not be read after it:
+        boolean flags = false;
+        for (Node n : moved) {
+            flags |= instr(n) instanceof X86Instr &&
+                Instrs.changesFlags((X86Instr)instr(n));
+        }
+        if (flags && !Instrs.flagsDead(code, h)) {
+            return null;
+        }
+
+        // Only jumps can be retargeted (the fall-through predecessor, if any,
+        // is the instruction before the header):
+        ArrayList<X86Instr> jumps = new ArrayList<X86Instr>();
+        for (Node p : loop.getEntries()) {
+            Instr instr = instr(p);
+            if (instr instanceof X86Instr && instr.jumps() != null) {
+                jumps.add((X86Instr)instr);
+            } else if (position.get(p) != h - 1) {
+                return null;
+            }
+        }
+
+        // The preheader goes before the header if it is entered from above,
+        // or else after an unconditional jump, ending with a jump back:
+        Label label = preheaderLabel(header);
+        Set<Node> set = new HashSet<Node>(moved);
+        int at;
+        boolean above = h == 0 || !loop.contains(nodeAt(h - 1));
+        if (above) {
+            at = h;
+        } else {
+            at = -1;
+            for (int i = 0; i < code.size(); i++) {
+                if (code.get(i) instanceof X86Instr &&
+                    ((X86Instr)code.get(i)).getOpcode() == Opcode.JMP) {
+                    at = i + 1;
+                    break;
+                }
+            }
+            if (at < 0) {
+                return null;
+            }
+        }
+
+        ArrayList<Instr> pre = new ArrayList<Instr>();
+        pre.add(new assem.LABEL(label.toString() + ":", label));
+        for (Node n : moved) {
+            pre.add(instr(n));
+        }
+        if (!above) {
+            pre.add(new X86Instr(Opcode.JMP, new List<Label>(header, null)));
+        }
+
+        ArrayList<Instr> result = new ArrayList<Instr>(code.size() + pre.size());
+        for (int i = 0; i < code.size(); i++) {
+            if (i == at) {
+                result.addAll(pre);
+            }
+            if (!set.contains(nodeAt(i))) {
+                result.add(code.get(i));
+            }
+        }
+        if (at == code.size()) {
+            result.addAll(pre);
+        }
+
+        for (X86Instr j : jumps) {
+            j.setTargets(retarget(j.jumps(), header, label));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new label named after header. Label numbers come from an
+     * unsynchronized counter, and methods are optimized concurrently (see
+     * Driver), so the name is made from the header's instead.
+     */
+    private Label preheaderLabel(Label header) {
+        Set<String> names = new HashSet<String>();
+        for (Instr instr : code) {
+            if (instr instanceof assem.LABEL) {
+                names.add(((assem.LABEL)instr).getLabel().toString());
+            }
+        }
+        String name = header + "_pre";
+        for (int k = 2; names.contains(name); k++) {
+            name = header + "_pre" + k;
+        }
+        return new Label(name);
+    }
+
+    /**
+     * Returns targets with from replaced by to.
+     */
+    private static List<Label> retarget(List<Label> targets, Label from,
+        Label to) {
+        if (targets == null) {
+            return null;
+        }
+        return new List<Label>(targets.head == from ? to : targets.head,
+            retarget(targets.tail, from, to));
+    }
+
+    /**
+     * Whether n dominates every node of loop with a successor outside it.
+     */
+    private boolean dominatesExits(Loops.Loop loop, Node n) {
+        for (Node m : loop.getBody()) {
+            if (m.getSuccs() == null) {
+                continue;
+            }
+            for (Node s : m.getSuccs()) {
+                if (!loop.contains(s) && !dom.dominates(n, m)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Instr instr(Node n) {
+        return code.get(position.get(n));
+    }
+
+    private Node nodeAt(int i) {
+        return nodes.get(i);
+    }
+}
@@ -0,0 +1,135 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Natural loops of a flow graph: an edge n -> h where h dominates n is a
+ * back edge, and its loop is h plus every node that reaches n without going
+ * through h. The loops of the back edges into the same header are merged.
+ */
+public class Loops {
+
+    /**
+     * A natural loop.
+     */
+    public static class Loop {
+        private final Node header;
+        private final Set<Node> body = new HashSet<Node>();
+        private final ArrayList<Node> latches = new ArrayList<Node>();
+        private final ArrayList<Node> entries = new ArrayList<Node>();
+
+        Loop(Node header) {
+            this.header = header;
+            body.add(header);
+        }
+
+        public Node getHeader() {
+            return header;
+        }
+
+        /**
+         * The nodes of the loop, header included.
+         */
+        public Set<Node> getBody() {
+            return body;
+        }
+
+        /**
+         * The sources of the back edges.
+         */
+        public ArrayList<Node> getLatches() {
+            return latches;
+        }
+
+        /**
+         * The predecessors of the header outside the loop: a preheader is
+         * the only one, and has the header as its only successor.
+         */
+        public ArrayList<Node> getEntries() {
+            return entries;
+        }
+
+        public boolean contains(Node n) {
+            return body.contains(n);
+        }
+    }
+
+    private ArrayList<Loop> loops;
+
+    public Loops(AssemFlowGraph cfg, Dominators dom) {
+        Map<Node, Loop> byHeader = new LinkedHashMap<Node, Loop>();
+        for (Node n : cfg.nodes()) {
+            if (!dom.isReachable(n) || n.getSuccs() == null) {
+                continue;
+            }
+            for (Node h : n.getSuccs()) {
+                if (!dom.dominates(h, n)) {
+                    continue;
+                }
+                Loop loop = byHeader.get(h);
+                if (loop == null) {
+                    loop = new Loop(h);
+                    byHeader.put(h, loop);
+                }
+                loop.latches.add(n);
+                collect(loop, n, dom);
+            }
+        }
+
+        loops = new ArrayList<Loop>(byHeader.values());
+        for (Loop loop : loops) {
+            for (Node p : loop.header.getPreds()) {
+                if (!loop.body.contains(p)) {
+                    loop.entries.add(p);
+                }
+            }
+        }
+
+        // A loop nested in another has fewer nodes:
+        Collections.sort(loops, new Comparator<Loop>() {
+            public int compare(Loop a, Loop b) {
+                return a.body.size() - b.body.size();
+            }
+        });
+    }
+
+    /**
+     * Adds to loop the nodes that reach latch without going through the
+     * header (all reachable, since the header dominates latch).
+     */
+    private static void collect(Loop loop, Node latch, Dominators dom) {
+        ArrayList<Node> stack = new ArrayList<Node>();
+        if (loop.body.add(latch)) {
+            stack.add(latch);
+        }
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            if (n.getPreds() == null) {
+                continue;
+            }
+            for (Node p : n.getPreds()) {
+                if (dom.isReachable(p) && loop.body.add(p)) {
+                    stack.add(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * The loops, innermost first.
+     *
+     * @return
+     */
+    public ArrayList<Loop> getLoops() {
+        return loops;
+    }
+}
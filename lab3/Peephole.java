@@ -0,0 +1,306 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import assem.Instr;
+import temp.Label;
+import temp.Temp;
+import temp.TempMap;
+import util.List;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Peephole optimization: a window slides over the instructions and the
+ * first rule of RULES matching the instructions under it replaces them.
+ * After a rewrite the window moves back one instruction, so rewrites can
+ * chain.
+ *     The same pass runs before register allocation (on temporaries) and
+ * after it, given the allocation: then two temporaries are the same when
+ * they got the same register, and a few rules that would lengthen live
+ * ranges (xor r, r reads r) are enabled. Rules that change the flags only
+ * apply when no conditional jump reads them before they are set again.
+ *     Each rule counts its hits, see getHits().
+ */
+public class Peephole {
+
+    /**
+     * A rewrite of size consecutive instructions.
+     */
+    abstract static class Rule {
+        final String name;
+        final int size;
+        final boolean afterAllocationOnly;
+        final boolean changesFlags;
+
+        Rule(String name, int size, boolean afterAllocationOnly,
+            boolean changesFlags) {
+            this.name = name;
+            this.size = size;
+            this.afterAllocationOnly = afterAllocationOnly;
+            this.changesFlags = changesFlags;
+        }
+
+        /**
+         * Returns the instructions replacing w, or null if w doesn't match.
+         */
+        abstract Instr[] rewrite(Peephole p, Instr[] w);
+    }
+
+    private static final Instr[] DELETE = new Instr[0];
+
+    static final Rule[] RULES = {
+        // cmp r, 0 => test r, r (same flags, shorter):
+        new Rule("cmp-zero-to-test", 1, false, false) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                Operand.Reg r = register(w[0], Opcode.CMP);
+                if (r == null || !Operand.isImm(src(w[0]), 0)) {
+                    return null;
+                }
+                return one(new X86Instr(Opcode.TEST, r, r));
+            }
+        },
+
+        // mov r, 0 => xor r, r:
+        new Rule("mov-zero-to-xor", 1, true, true) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                Operand.Reg r = register(w[0], Opcode.MOV);
+                if (r == null || !Operand.isImm(src(w[0]), 0)) {
+                    return null;
+                }
+                return one(new X86Instr(Opcode.XOR, r, r));
+            }
+        },
+
+        // add r, 1 => inc r and sub r, 1 => dec r (and with -1):
+        new Rule("add-one-to-inc", 1, false, true) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                Operand.Reg r = register(w[0], Opcode.ADD);
+                int sign = 1;
+                if (r == null) {
+                    r = register(w[0], Opcode.SUB);
+                    sign = -1;
+                }
+                if (r == null || !(src(w[0]) instanceof Operand.Imm)) {
+                    return null;
+                }
+                long c = sign * ((Operand.Imm)src(w[0])).value;
+                if (c != 1 && c != -1) {
+                    return null;
+                }
+                return one(new X86Instr((c == 1) ? Opcode.INC : Opcode.DEC, r));
+            }
+        },
+
+        // add/sub/or/xor/shifts by 0, and r, -1, imul r, 1 => nothing:
+        new Rule("identity-op", 1, false, true) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                if (!(w[0] instanceof X86Instr)) {
+                    return null;
+                }
+                X86Instr x = (X86Instr)w[0];
+                if (!(x.getDestination() instanceof Operand.Reg)) {
+                    return null;
+                }
+                switch (x.getOpcode()) {
+                    case ADD:
+                    case SUB:
+                    case OR:
+                    case XOR:
+                    case SHL:
+                    case SHR:
+                    case SAR:
+                        return Operand.isImm(x.getSource(), 0) ? DELETE : null;
+                    case AND:
+                        return Operand.isImm(x.getSource(), -1) ? DELETE : null;
+                    case IMUL:
+                        return Operand.isImm(x.getSource(), 1) ? DELETE : null;
+                    default:
+                        return null;
+                }
+            }
+        },
+
+        // mov r, r => nothing:
+        new Rule("self-move", 1, false, false) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                if (w[0] instanceof assem.MOVE) {
+                    return p.same(w[0].def().head, w[0].use().head) ? DELETE : null;
+                }
+                Operand.Reg r = register(w[0], Opcode.MOV);
+                if (r == null || !(src(w[0]) instanceof Operand.Reg)) {
+                    return null;
+                }
+                return p.same(r.temp, ((Operand.Reg)src(w[0])).temp) ? DELETE : null;
+            }
+        },
+
+        // jmp L; L: => L:
+        new Rule("jump-to-next", 2, false, false) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                if (!(w[0] instanceof X86Instr) || !(w[1] instanceof assem.LABEL) ||
+                    ((X86Instr)w[0]).getOpcode() != Opcode.JMP ||
+                    ((X86Instr)w[0]).getDestination() != null) {
+                    return null;
+                }
+                List<Label> targets = w[0].jumps();
+                if (targets == null || targets.tail != null ||
+                    targets.head != ((assem.LABEL)w[1]).getLabel()) {
+                    return null;
+                }
+                return one(w[1]);
+            }
+        },
+
+        // mov [m], r; mov s, [m] => mov [m], r; mov s, r (nothing if s is r):
+        new Rule("store-reload", 2, false, false) {
+            Instr[] rewrite(Peephole p, Instr[] w) {
+                if (!(w[0] instanceof X86Instr) || !(w[1] instanceof X86Instr) ||
+                    ((X86Instr)w[0]).getOpcode() != Opcode.MOV ||
+                    ((X86Instr)w[1]).getOpcode() != Opcode.MOV) {
+                    return null;
+                }
+                Operand store = ((X86Instr)w[0]).getDestination();
+                Operand value = ((X86Instr)w[0]).getSource();
+                Operand load = ((X86Instr)w[1]).getSource();
+                Operand dst = ((X86Instr)w[1]).getDestination();
+                if (!(store instanceof Operand.Mem) || !(value instanceof Operand.Reg) ||
+                    !(dst instanceof Operand.Reg) ||
+                    !p.same((Operand.Mem)store, load)) {
+                    return null;
+                }
+                Temp r = ((Operand.Reg)value).temp;
+                Temp s = ((Operand.Reg)dst).temp;
+                if (p.same(r, s)) {
+                    return one(w[0]);
+                }
+                return new Instr[] {w[0], new assem.MOVE(s, r)};
+            }
+        }
+    };
+
+    private final TempMap allocation;
+    private final int[] hits;
+
+    /**
+     * Peephole pass before register allocation.
+     */
+    public Peephole() {
+        this(null);
+    }
+
+    /**
+     * Peephole pass after register allocation.
+     *
+     * @param allocation register of each temporary
+     */
+    public Peephole(TempMap allocation) {
+        this.allocation = allocation;
+        this.hits = new int[RULES.length];
+    }
+
+    /**
+     * Rewrites l in place (a list whose every instruction would be deleted
+     * is left as it is).
+     *
+     * @param l
+     */
+    public void optimize(List<Instr> l) {
+        ArrayList<Instr> code = new ArrayList<Instr>();
+        for (List<Instr> c = l; c != null; c = c.tail) {
+            code.add(c.head);
+        }
+
+        int i = 0;
+        while (i < code.size()) {
+            boolean changed = false;
+            for (int k = 0; k < RULES.length && !changed; k++) {
+                Rule r = RULES[k];
+                if ((r.afterAllocationOnly && allocation == null) ||
+                    i + r.size > code.size()) {
+                    continue;
+                }
+                Instr[] w = code.subList(i, i + r.size).toArray(new Instr[r.size]);
+                Instr[] replacement = r.rewrite(this, w);
+                if (replacement == null ||
+                    (r.changesFlags && !Instrs.flagsDead(code, i + r.size))) {
+                    continue;
+                }
+
+                code.subList(i, i + r.size).clear();
+                for (int j = 0; j < replacement.length; j++) {
+                    code.add(i + j, replacement[j]);
+                }
+                hits[k]++;
+                changed = true;
+            }
+            i = changed ? Math.max(i - 1, 0) : i + 1;
+        }
+
+        if (!code.isEmpty()) {
+            Instrs.replace(l, code);
+        }
+    }
+
+    /**
+     * Hits of each rule, by name.
+     *
+     * @return
+     */
+    public Map<String, Integer> getHits() {
+        Map<String, Integer> m = new LinkedHashMap<String, Integer>();
+        for (int k = 0; k < RULES.length; k++) {
+            m.put(RULES[k].name, hits[k]);
+        }
+        return m;
+    }
+
+    private boolean same(Temp a, Temp b) {
+        if (a.equals(b)) {
+            return true;
+        }
+        if (allocation == null) {
+            return false;
+        }
+        String ra = allocation.tempMap(a);
+        return ra != null && ra.equals(allocation.tempMap(b));
+    }
+
+    private boolean sameOrNull(Temp a, Temp b) {
+        return (a == null || b == null) ? (a == b) : same(a, b);
+    }
+
+    /**
+     * Whether o is the same memory operand as m.
+     */
+    private boolean same(Operand.Mem m, Operand o) {
+        if (!(o instanceof Operand.Mem)) {
+            return false;
+        }
+        Operand.Mem n = (Operand.Mem)o;
+        return m.disp == n.disp && m.scale == n.scale &&
+            sameOrNull(m.base, n.base) && sameOrNull(m.index, n.index);
+    }
+
+    /**
+     * The register destination of instr if it is an op instruction.
+     */
+    private static Operand.Reg register(Instr instr, Opcode op) {
+        if (!(instr instanceof X86Instr) || ((X86Instr)instr).getOpcode() != op ||
+            !(((X86Instr)instr).getDestination() instanceof Operand.Reg)) {
+            return null;
+        }
+        return (Operand.Reg)((X86Instr)instr).getDestination();
+    }
+
+    private static Operand src(Instr instr) {
+        return ((X86Instr)instr).getSource();
+    }
+
+    private static Instr[] one(Instr instr) {
+        return new Instr[] {instr};
+    }
+}
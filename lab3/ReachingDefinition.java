@@ -1,7 +1,11 @@
 package optimization;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,105 +15,215 @@ import assem.Instr;
 import flow_graph.AssemFlowGraph;
 import graph.Node;
 
-public class ReachingDefinition {
+/**
+ * Reaching definitions.
+ *     No gen or kill set is stored per node: the transfer function of a
+ * definition d of t computes in - D(t) + {d} from the sets D(t). The in and
+ * out sets are only kept per basic block, and shared between blocks where
+ * equal (see compact()), so getIn, getOut and getKill return copies, not
+ * views.
+ */
+public class ReachingDefinition extends DataflowAnalysis {
 
-    private AssemFlowGraph cfg;
+    // Dense numbering of the definitions (d -> node and node -> d):
+    private Node[] defNodes;
+    private Map<Node, Integer> defIndex;
 
-    private Map<Node, Set<Node>> in;
-    private Map<Node, Set<Node>> out;
-    private Map<Node, Set<Node>> gen;
-    private Map<Node, Set<Node>> kill;
+    // Set of all definitions of the temporary t:
+    private Map<Temp, BitSet> defs;
 
-    // Set of all nodes that define the temporary t:
-    private Map<Temp, Set<Node>> defs;
+    // Instruction of each node, by node number:
+    private Instr[] instrs;
+    private boolean all;
 
     public Set<Node> getIn(Node n){
-        return in.get(n);
+        Integer i = index(n);
+        return (i == null) ? null : copy(in(i));
     }
 
     public Set<Node> getOut(Node n){
-        return out.get(n);
+        Integer i = index(n);
+        return (i == null) ? null : copy(out(i));
     }
 
     public Set<Node> getKill(Node n){
-        return kill.get(n);
+        Integer i = index(n);
+        if (i == null) {
+            return null;
+        }
+        // kill[n] = {defs(t) - d}:
+        BitSet k = new BitSet();
+        Integer d = defIndex.get(n);
+        if (d != null) {
+            for (Temp t : instrs[i].def()) {
+                k.or(defs.get(t));
+            }
+            k.clear(d);
+        }
+        return copy(k);
     }
-    
-    public ReachingDefinition(List<Instr> l, AssemFlowGraph cfg) {
-        // Initializes D(t):
-        defs = new HashMap<Temp, Set<Node>>();
-        for (Node n : cfg.nodes()) {
-            // Consider only unambiguous definitions:
-            if (!cfg.getInstr(n).isMoveBetweenTemps()) {
+
+    /**
+     * Reaching definitions entering n as a BitSet of definition numbers.
+     */
+    BitSet getInBits(Node n) {
+        Integer i = index(n);
+        return (i == null) ? null : in(i);
+    }
+
+    /**
+     * Definitions of t as a BitSet of definition numbers, or null if t is
+     * never unambiguously defined.
+     */
+    BitSet getDefinitionBits(Temp t) {
+        return defs.get(t);
+    }
+
+    /**
+     * Returns the node of the definition numbered d.
+     */
+    Node getDefinition(int d) {
+        return defNodes[d];
+    }
+
+    /**
+     * Returns the nodes the definition in n reaches that use a temporary it
+     * defines. Only the nodes it reaches are visited, along the paths from
+     * n that stop after the next definition of one of its temporaries, so
+     * no in or out set is derived.
+     *
+     * @param n
+     * @return
+     */
+    public ArrayList<Node> getUses(Node n) {
+        ArrayList<Node> uses = new ArrayList<Node>();
+        Integer d = defIndex.get(n);
+        if (d == null) {
+            return uses;
+        }
+        List<Temp> defined = instrs[index(n)].def();
+
+        Set<Node> visited = new HashSet<Node>();
+        ArrayList<Node> stack = new ArrayList<Node>();
+        stack.add(n);
+        while (!stack.isEmpty()) {
+            Node m = stack.remove(stack.size() - 1);
+            if (m.getSuccs() == null) {
                 continue;
             }
-            
-            // Add current definition node to D(t):
-            for (Temp t : cfg.getDefined(n)) {
-                Set<Node> Dt = defs.get(t);
-                if (Dt == null) {
-                    Dt = new HashSet<Node>();
+            for (Node s : m.getSuccs()) {
+                int i = index(s);
+                if (!visited.add(s)) {
+                    continue;
+                }
+                if (instrs[i].use() != null) {
+                    for (Temp t : instrs[i].use()) {
+                        if (defined.hasElement(t)) {
+                            uses.add(s);
+                            break;
+                        }
+                    }
+                }
+                if (!kills(i, defined)) {
+                    stack.add(s);
                 }
-                Dt.add(n);
-                defs.put(t, Dt);
             }
         }
-        
-        // Initializes gen[n] and kill[n]:
-        gen = new HashMap<Node, Set<Node>>();
-        kill = new HashMap<Node, Set<Node>>();
+        return uses;
+    }
+
+    /**
+     * Returns the nodes of the definitions in set, in definition order.
+     */
+    private Set<Node> copy(BitSet set) {
+        Set<Node> nodes = new LinkedHashSet<Node>();
+        for (int d = set.nextSetBit(0); d >= 0; d = set.nextSetBit(d + 1)) {
+            nodes.add(defNodes[d]);
+        }
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    public ReachingDefinition(List<Instr> l, AssemFlowGraph cfg) {
+        this(l, cfg, false);
+    }
+
+    /**
+     * @param l
+     * @param cfg
+     * @param all If true, every instruction that defines a temporary counts
+     *     as a definition, not only the unambiguous "t <- x" moves.
+     */
+    public ReachingDefinition(List<Instr> l, AssemFlowGraph cfg, boolean all) {
+        super(cfg, Direction.FORWARD, Meet.UNION);
+        this.all = all;
+
+        instrs = new Instr[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            instrs[i] = cfg.getInstr(nodes[i]);
+        }
+
+        // Number the definitions:
+        ArrayList<Node> definitions = new ArrayList<Node>();
+        defIndex = new HashMap<Node, Integer>();
         for (Node n : cfg.nodes()) {
-            // gen[n] = {d}:
-            Set<Node> gen_n = new HashSet<Node>();
-            if (cfg.getInstr(n).isMoveBetweenTemps()) {
-                gen_n.add(n);
+            // Consider only unambiguous definitions, unless asked for all:
+            if (isDefinition(instrs[index(n)])) {
+                defIndex.put(n, definitions.size());
+                definitions.add(n);
             }
-            gen.put(n, gen_n);
-            
-            // kill[n] = {defs(t) - d}:
-            Set<Node> kill_n = new HashSet<Node>();
-            if (cfg.getInstr(n).isMoveBetweenTemps()) {
-                for (Temp t : cfg.getDefined(n)) {
-                    kill_n.addAll(defs.get(t));
-                    kill_n.remove(n);
+        }
+        defNodes = definitions.toArray(new Node[definitions.size()]);
+
+        // Initializes D(t):
+        defs = new HashMap<Temp, BitSet>();
+        for (int d = 0; d < defNodes.length; d++) {
+            for (Temp t : cfg.getDefined(defNodes[d])) {
+                BitSet Dt = defs.get(t);
+                if (Dt == null) {
+                    Dt = new BitSet(defNodes.length);
+                    defs.put(t, Dt);
                 }
+                Dt.set(d);
             }
-            kill.put(n, kill_n);
         }
-        
+
         // Compute the Reaching Definitions:
-        in = new HashMap<Node, Set<Node>>();
-        out = new HashMap<Node, Set<Node>>();
-        Map<Node, Set<Node>> old_in = new HashMap<Node, Set<Node>>();
-        Map<Node, Set<Node>> old_out = new HashMap<Node, Set<Node>>();
-        do {
-            // Since in[n] and out[n] always increase, we can just .putAll:
-            old_in.putAll(in);
-            old_out.putAll(out);
-            
-            for (Node n : cfg.nodes()) {
-                // in[n] = U_{p \in pred[n]} out[p]:
-                Set<Node> in_n = new HashSet<Node>();
-                if (n.getPreds() != null) {
-                    for (Node p : n.getPreds()) {
-                        if (out.get(p) != null) {
-                            in_n.addAll(out.get(p));
-                        }
-                    }
-                }
-                in.put(n, in_n);
-                
-                // in[n] - kill[n]:
-                Set<Node> diff = new HashSet<Node>();
-                diff.addAll(in_n);
-                diff.removeAll(kill.get(n));
-
-                // out[n] = gen[n] U (in[n] - kill[n]):
-                Set<Node> out_n = new HashSet<Node>();
-                out_n.addAll(gen.get(n));
-                out_n.addAll(diff);
-                out.put(n, out_n);
-            }            
-        } while (!in.equals(old_in) || !out.equals(old_out));
+        solve(defNodes.length);
+        compact();
+    }
+
+    /**
+     * out[n] = {d} U (in[n] - D(t)) for a definition d of t, else in[n].
+     */
+    @Override
+    protected void transfer(int i, BitSet input, BitSet result) {
+        result.or(input);
+        Integer d = defIndex.get(nodes[i]);
+        if (d != null) {
+            for (Temp t : instrs[i].def()) {
+                result.andNot(defs.get(t));
+            }
+            result.set(d);
+        }
+    }
+
+    /**
+     * Whether the node numbered i is a definition of one of the temporaries
+     * in temps, which kills every other definition of them.
+     */
+    private boolean kills(int i, List<Temp> temps) {
+        if (!defIndex.containsKey(nodes[i])) {
+            return false;
+        }
+        for (Temp t : instrs[i].def()) {
+            if (temps.hasElement(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDefinition(Instr instr) {
+        return all ? instr.def() != null : instr.isMoveBetweenTemps();
     }
 }
@@ -0,0 +1,165 @@
+package optimization;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Times reaching definitions on the random methods of DataflowFootprint, of
+ * 1k to 100k statements, against the original analysis, which kept
+ * gen, kill, in and out as a HashMap of HashSets per node and swept the
+ * whole graph until the maps stopped changing. The new analysis is built a
+ * few times first, to warm up, and the best of a few timed runs is printed;
+ * the original one is run once after a warm-up on the smallest size:
+ *
+ *     java -Xmx4g optimization.ReachingDefinitionBenchmark [size...]
+ *
+ * The original analysis is skipped above a limit (5000 statements, or the
+ * -Dlimit property): it takes about 40 s there, and runs out of a 4 GB heap
+ * at 10000.
+ */
+public class ReachingDefinitionBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 5000, 10000, 100000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        int limit = Integer.getInteger("limit", 5000);
+
+        for (int size : sizes) {
+            final List<Instr> l = DataflowFootprint.method(new Random(size), size);
+            final AssemFlowGraph cfg = new AssemFlowGraph(l);
+
+            long bits = time(new Runnable() {
+                public void run() {
+                    new ReachingDefinition(l, cfg);
+                }
+            }, WARMUP, RUNS);
+            String maps = "skipped";
+            if (size <= limit) {
+                maps = time(new Runnable() {
+                    public void run() {
+                        new MapReachingDefinition(cfg);
+                    }
+                }, (size == sizes[0]) ? 1 : 0, 1) / 1000000 + " ms";
+            }
+            System.out.println(l.size() + " nodes: BitSet " + bits / 1000000 +
+                " ms, HashMap " + maps);
+        }
+    }
+
+    /**
+     * Best time of task over runs, after warmup untimed ones, in
+     * nanoseconds.
+     */
+    private static long time(Runnable task, int warmup, int runs) {
+        for (int k = 0; k < warmup; k++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int k = 0; k < runs; k++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * The original reaching definitions, for comparison.
+     */
+    private static class MapReachingDefinition {
+
+        private Map<Node, Set<Node>> in;
+        private Map<Node, Set<Node>> out;
+        private Map<Node, Set<Node>> gen;
+        private Map<Node, Set<Node>> kill;
+
+        // Set of all nodes that define the temporary t:
+        private Map<Temp, Set<Node>> defs;
+
+        MapReachingDefinition(AssemFlowGraph cfg) {
+            // Initializes D(t):
+            defs = new HashMap<Temp, Set<Node>>();
+            for (Node n : cfg.nodes()) {
+                if (!cfg.getInstr(n).isMoveBetweenTemps()) {
+                    continue;
+                }
+                for (Temp t : cfg.getDefined(n)) {
+                    Set<Node> Dt = defs.get(t);
+                    if (Dt == null) {
+                        Dt = new HashSet<Node>();
+                    }
+                    Dt.add(n);
+                    defs.put(t, Dt);
+                }
+            }
+
+            // Initializes gen[n] and kill[n]:
+            gen = new HashMap<Node, Set<Node>>();
+            kill = new HashMap<Node, Set<Node>>();
+            for (Node n : cfg.nodes()) {
+                Set<Node> gen_n = new HashSet<Node>();
+                if (cfg.getInstr(n).isMoveBetweenTemps()) {
+                    gen_n.add(n);
+                }
+                gen.put(n, gen_n);
+
+                Set<Node> kill_n = new HashSet<Node>();
+                if (cfg.getInstr(n).isMoveBetweenTemps()) {
+                    for (Temp t : cfg.getDefined(n)) {
+                        kill_n.addAll(defs.get(t));
+                        kill_n.remove(n);
+                    }
+                }
+                kill.put(n, kill_n);
+            }
+
+            // Sweeps until nothing changes:
+            in = new HashMap<Node, Set<Node>>();
+            out = new HashMap<Node, Set<Node>>();
+            Map<Node, Set<Node>> old_in = new HashMap<Node, Set<Node>>();
+            Map<Node, Set<Node>> old_out = new HashMap<Node, Set<Node>>();
+            do {
+                old_in.putAll(in);
+                old_out.putAll(out);
+
+                for (Node n : cfg.nodes()) {
+                    Set<Node> in_n = new HashSet<Node>();
+                    if (n.getPreds() != null) {
+                        for (Node p : n.getPreds()) {
+                            if (out.get(p) != null) {
+                                in_n.addAll(out.get(p));
+                            }
+                        }
+                    }
+                    in.put(n, in_n);
+
+                    Set<Node> diff = new HashSet<Node>();
+                    diff.addAll(in_n);
+                    diff.removeAll(kill.get(n));
+
+                    Set<Node> out_n = new HashSet<Node>();
+                    out_n.addAll(gen.get(n));
+                    out_n.addAll(diff);
+                    out.put(n, out_n);
+                }
+            } while (!in.equals(old_in) || !out.equals(old_out));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package optimization;
+
+import java.util.ArrayList;
+
+import temp.Label;
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import x86.Frame;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Regression checks for the optimizations, on small hand-written methods
+ * that once came out wrong. A failed check throws an Error naming it:
+ *
+ *     java optimization.RegressionCheck
+ */
+public class RegressionCheck {
+
+    public static void main(String[] args) {
+        availableAtLoopEntry();
+        eliminationAtLoopEntry();
+        copiesAtLoopEntry();
+        branchToSameLabel();
+        System.out.println("ok");
+    }
+
+    /**
+     * The method starts with a loop header, so the value coming round the
+     * back edge isn't available on entry:
+     *
+     *     L0: mov r1, [ebp+8]; add i, r1; cmp i, 100; jl L0
+     */
+    private static void availableAtLoopEntry() {
+        Temp r1 = new Temp(), i = new Temp();
+        List<Instr> l = loop(
+            new X86Instr(Opcode.MOV, Operand.reg(r1), Operand.mem(Frame.ebp, 8)),
+            new X86Instr(Opcode.ADD, Operand.reg(i), Operand.reg(r1)));
+
+        AssemFlowGraph cfg = new AssemFlowGraph(l);
+        AvailableExpressions available = new AvailableExpressions(cfg);
+        Node load = cfg.nodes().tail.head;
+        check("available at loop entry",
+            available.getHolders(load, available.getComputed(load)).isEmpty());
+    }
+
+    /**
+     * CSE must keep the load of a loop that starts the method: it is the
+     * only definition of r1 on the first iteration.
+     */
+    private static void eliminationAtLoopEntry() {
+        Temp r1 = new Temp(), i = new Temp();
+        Instr load = new X86Instr(Opcode.MOV, Operand.reg(r1), Operand.mem(Frame.ebp, 8));
+        List<Instr> l = loop(load,
+            new X86Instr(Opcode.ADD, Operand.reg(i), Operand.reg(r1)));
+
+        boolean changed = new CommonSubexpressionElimination(new Frame()).optimize(l);
+        check("elimination at loop entry", !changed && l.tail.head == load);
+    }
+
+    /**
+     * The copy "t <- s" made on the back edge doesn't hold on entry, so the
+     * first "add i, t" must keep reading t:
+     *
+     *     L0: add i, t; t <- s; add i, 1; cmp i, 100; jl L0
+     */
+    private static void copiesAtLoopEntry() {
+        Temp t = new Temp(), s = new Temp(), i = new Temp();
+        List<Instr> l = loop(
+            new X86Instr(Opcode.ADD, Operand.reg(i), Operand.reg(t)),
+            new assem.MOVE(t, s),
+            new X86Instr(Opcode.ADD, Operand.reg(i), Operand.imm(1)));
+
+        new CopyPropagation(new Frame()).optimize(l);
+        check("copies at loop entry", reads(l.tail.head, t));
+    }
+
+    /**
+     * A decided jump whose two targets are the label after it (what
+     * BlockLayout leaves of "if (c) {} else {}") goes on to that label:
+     *
+     *     mov t, 1; cmp t, 2; jl [L0, L0]; L0: mov [ebp+8], t
+     */
+    private static void branchToSameLabel() {
+        Temp t = new Temp();
+        Label join = new Label();
+        ArrayList<Instr> code = new ArrayList<Instr>();
+        code.add(new X86Instr(Opcode.MOV, Operand.reg(t), Operand.imm(1)));
+        code.add(new X86Instr(Opcode.CMP, Operand.reg(t), Operand.imm(2)));
+        code.add(new X86Instr(Opcode.JL,
+            new List<Label>(join, new List<Label>(join, null))));
+        code.add(label(join));
+        code.add(new X86Instr(Opcode.MOV, Operand.mem(Frame.ebp, 8), Operand.reg(t)));
+
+        boolean stored = false;
+        for (Instr instr : new CondConstPropagation().optimize(list(code))) {
+            stored |= instr instanceof X86Instr &&
+                ((X86Instr)instr).getDestination() instanceof Operand.Mem;
+        }
+        check("branch to the same label", stored);
+    }
+
+    /**
+     * Returns "L0: body; cmp i, 100; jl L0" followed by the label of the
+     * fall-through, i being the destination of the last body instruction.
+     */
+    private static List<Instr> loop(Instr... body) {
+        Label top = new Label(), exit = new Label();
+        Temp i = body[body.length - 1].def().head;
+
+        ArrayList<Instr> code = new ArrayList<Instr>();
+        code.add(label(top));
+        for (Instr instr : body) {
+            code.add(instr);
+        }
+        code.add(new X86Instr(Opcode.CMP, Operand.reg(i), Operand.imm(100)));
+        code.add(new X86Instr(Opcode.JL,
+            new List<Label>(top, new List<Label>(exit, null))));
+        code.add(label(exit));
+        return list(code);
+    }
+
+    private static List<Instr> list(ArrayList<Instr> code) {
+        List<Instr> l = null;
+        for (int k = code.size() - 1; k >= 0; k--) {
+            l = new List<Instr>(code.get(k), l);
+        }
+        return l;
+    }
+
+    private static boolean reads(Instr instr, Temp t) {
+        for (List<Temp> u = instr.use(); u != null; u = u.tail) {
+            if (u.head.equals(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Instr label(Label l) {
+        return new assem.LABEL(l.toString() + ":", l);
+    }
+
+    private static void check(String name, boolean ok) {
+        if (!ok) {
+            throw new Error("check failed: " + name);
+        }
+    }
+}
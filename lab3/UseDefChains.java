@@ -0,0 +1,99 @@
+package optimization;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import temp.Temp;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Use-def chains: for every node n and every temporary t used in n, the
+ * definitions of t that reach n.
+ *     The chains are built once from the reaching definitions by bucketing
+ * each in[n] per used temporary (in[n] & D(t)), so a query costs a hash
+ * lookup plus the number of definitions returned.
+ */
+public class UseDefChains {
+
+    private static final Node[] NONE = new Node[0];
+
+    // Chains of a single node, one entry per used temporary:
+    private static class Uses {
+        Temp[] temps;
+        Node[][] defs;
+    }
+
+    private Map<Node, Uses> chains;
+
+    public UseDefChains(AssemFlowGraph cfg, ReachingDefinition dfa) {
+        chains = new HashMap<Node, Uses>();
+
+        BitSet reaching = new BitSet();
+        for (Node n : cfg.nodes()) {
+            if (cfg.getUsed(n) == null) continue;
+
+            Uses u = new Uses();
+            u.temps = new Temp[cfg.getUsed(n).size()];
+            u.defs = new Node[u.temps.length][];
+
+            int k = 0;
+            for (Temp t : cfg.getUsed(n)) {
+                u.temps[k] = t;
+                u.defs[k] = NONE;
+
+                BitSet Dt = dfa.getDefinitionBits(t);
+                if (Dt != null) {
+                    // Definitions of t that reach n:
+                    reaching.clear();
+                    reaching.or(dfa.getInBits(n));
+                    reaching.and(Dt);
+
+                    u.defs[k] = new Node[reaching.cardinality()];
+                    int j = 0;
+                    for (int d = reaching.nextSetBit(0); d >= 0;
+                        d = reaching.nextSetBit(d + 1)) {
+                        u.defs[k][j++] = dfa.getDefinition(d);
+                    }
+                }
+                k++;
+            }
+            chains.put(n, u);
+        }
+    }
+
+    /**
+     * Returns the definitions of t that reach n. The array must not be
+     * modified.
+     *
+     * @param n
+     * @param t
+     * @return
+     */
+    public Node[] getDefs(Node n, Temp t) {
+        Uses u = chains.get(n);
+        if (u == null) {
+            return NONE;
+        }
+        for (int k = 0; k < u.temps.length; k++) {
+            if (u.temps[k].equals(t)) {
+                return u.defs[k];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the only definition of t that reaches n, or null if there are
+     * none or more than one.
+     *
+     * @param n
+     * @param t
+     * @return
+     */
+    public Node getUniqueDef(Node n, Temp t) {
+        Node[] d = getDefs(n, t);
+        return (d.length == 1) ? d[0] : null;
+    }
+}
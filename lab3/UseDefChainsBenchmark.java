@@ -0,0 +1,96 @@
+package optimization;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import temp.Temp;
+import util.List;
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+
+/**
+ * Times the unique reaching definition lookups of ConstPropagation, for
+ * every temporary every node uses, on the random methods of
+ * DataflowFootprint as they grow:
+ *     scan, as ConstPropagation first did it: every definition reaching the
+ * node, keeping the ones whose defined temporaries hold t;
+ *     chains: building UseDefChains, then one getUniqueDef per use.
+ * Both work on the same reaching definitions (every definition counts, as
+ * in ConstPropagation), which aren't timed. The best of a few runs is
+ * printed, after warm-up ones:
+ *
+ *     java -Xmx4g optimization.UseDefChainsBenchmark [size...]
+ */
+public class UseDefChainsBenchmark {
+
+    private static final int WARMUP = 2;
+    private static final int RUNS = 3;
+
+    // Keeps the results alive, so no lookup is optimized away:
+    private static int found;
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 2000, 5000, 10000, 20000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int size : sizes) {
+            List<Instr> l = DataflowFootprint.method(new Random(size), size);
+            AssemFlowGraph cfg = new AssemFlowGraph(l);
+            ReachingDefinition dfa = new ReachingDefinition(l, cfg, true);
+
+            long scan = Long.MAX_VALUE, chains = Long.MAX_VALUE;
+            for (int k = 0; k < WARMUP + RUNS; k++) {
+                long start = System.nanoTime();
+                scan(cfg, dfa);
+                long middle = System.nanoTime();
+                chains(cfg, dfa);
+                long end = System.nanoTime();
+                if (k >= WARMUP) {
+                    scan = Math.min(scan, middle - start);
+                    chains = Math.min(chains, end - middle);
+                }
+            }
+            System.out.println(l.size() + " nodes: scan " + scan / 1000000 +
+                " ms, chains " + chains / 1000000 + " ms");
+        }
+        if (found < 0) {
+            System.out.println(found);
+        }
+    }
+
+    private static void scan(AssemFlowGraph cfg, ReachingDefinition dfa) {
+        for (Node n : cfg.nodes()) {
+            if (cfg.getUsed(n) == null) continue;
+            BitSet in = dfa.getInBits(n);
+            for (Temp t : cfg.getUsed(n)) {
+                int count = 0;
+                for (int d = in.nextSetBit(0); d >= 0; d = in.nextSetBit(d + 1)) {
+                    if (cfg.getDefined(dfa.getDefinition(d)).hasElement(t)) {
+                        count++;
+                    }
+                }
+                if (count == 1) {
+                    found++;
+                }
+            }
+        }
+    }
+
+    private static void chains(AssemFlowGraph cfg, ReachingDefinition dfa) {
+        UseDefChains chains = new UseDefChains(cfg, dfa);
+        for (Node n : cfg.nodes()) {
+            if (cfg.getUsed(n) == null) continue;
+            for (Temp t : cfg.getUsed(n)) {
+                if (chains.getUniqueDef(n, t) != null) {
+                    found++;
+                }
+            }
+        }
+    }
+}
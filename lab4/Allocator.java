@@ -0,0 +1,33 @@
+package regalloc;
+
+import assem.Instr;
+import temp.Temp;
+import temp.TempMap;
+import util.List;
+
+/**
+ * Result of register allocation for one method.
+ */
+public interface Allocator extends TempMap {
+
+    /**
+     * The instructions after allocation (with spill code, and without the
+     * moves that became "r <- r").
+     */
+    List<Instr> getInstructions();
+
+    /**
+     * Returns the machine register assigned to t.
+     */
+    Temp getRegister(Temp t);
+
+    /**
+     * Number of temporaries spilled to the frame.
+     */
+    int getSpillCount();
+
+    /**
+     * Number of moves removed because both ends got the same register.
+     */
+    int getCoalescedCount();
+}
@@ -0,0 +1,53 @@
+package regalloc;
+
+import assem.Instr;
+import util.List;
+import x86.Frame;
+
+/**
+ * Chooses the register allocator of a method.
+ *     Graph coloring gives the better code but its interference graph grows
+ * with the square of the live temporaries; above LINEAR_SCAN_THRESHOLD
+ * instructions the default is to trade some code quality for the near
+ * linear compile time of linear scan.
+ */
+public final class Allocators {
+
+    public enum Mode {
+        AUTO, GRAPH_COLORING, LINEAR_SCAN
+    }
+
+    /**
+     * Size, in instructions, from which AUTO uses linear scan.
+     */
+    public static final int LINEAR_SCAN_THRESHOLD = 5000;
+
+    private Allocators() {
+    }
+
+    public static Allocator allocate(Frame frame, List<Instr> instrs) {
+        return allocate(frame, instrs, Mode.AUTO);
+    }
+
+    /**
+     * Allocates the registers of one method.
+     *
+     * @param frame
+     * @param instrs instructions selected by Codegen
+     * @param mode
+     * @return
+     */
+    public static Allocator allocate(Frame frame, List<Instr> instrs,
+        Mode mode) {
+        if (mode == Mode.AUTO) {
+            int size = (instrs == null) ? 0 : instrs.size();
+            mode = (size >= LINEAR_SCAN_THRESHOLD) ? Mode.LINEAR_SCAN
+                                                   : Mode.GRAPH_COLORING;
+        }
+
+        if (mode == Mode.LINEAR_SCAN) {
+            return new LinearScan(frame, instrs);
+        }
+        return new RegAlloc(frame, instrs);
+    }
+}
@@ -0,0 +1,232 @@
+package regalloc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import assem.Instr;
+import optimization.CommonSubexpressionElimination;
+import optimization.CondConstPropagation;
+import optimization.ConstPropagation;
+import optimization.CopyPropagation;
+import optimization.DeadCodeElimination;
+import optimization.LoopInvariantCodeMotion;
+import optimization.Peephole;
+import tree.Stm;
+import util.List;
+import x86.Codegen;
+import x86.Frame;
+import x86.InstrBuffer;
+import x86.Opcode;
+import x86.Operand;
+import x86.X86Instr;
+
+/**
+ * Compiles the methods of a program: instruction selection, sparse
+ * conditional constant propagation (which also drops the branches it
+ * decides and the code they made unreachable), common subexpression
+ * elimination, constant propagation, copy propagation and dead code
+ * elimination until none changes anything, loop-invariant code motion,
+ * peephole optimization, register allocation and peephole optimization
+ * again.
+ *     temp.Temp and temp.Label number themselves from unsynchronized static
+ * counters, so selection, which creates most of them, runs first, serially
+ * and in method order: the names are the same as in a serial compile. The
+ * rest of each method's pipeline is an independent task on a thread pool;
+ * the only names it creates are spill temporaries, made under a lock in
+ * SpillCode, which always get a register, and preheader labels, named after
+ * their loop's header. Results come back in method order.
+ *     With the OUTGOING_AREA calling sequence the body reserves the area
+ * its calls store their arguments into: "sub esp, N" at its start and
+ * "add esp, N" where it falls off the end, which is its only exit (see
+ * BlockLayout), so the frame's prologue and epilogue stay as they are.
+ */
+public final class Driver {
+
+    /**
+     * A method to compile: its frame and its canonical IR body.
+     */
+    public static class Method {
+        public final Frame frame;
+        public final List<Stm> body;
+
+        public Method(Frame frame, List<Stm> body) {
+            this.frame = frame;
+            this.body = body;
+        }
+    }
+
+    private final int threads;
+    private final Allocators.Mode mode;
+    private final Codegen.CallingSequence calls;
+
+    // Peephole rule hits, over every method compiled:
+    private final Map<String, Integer> hits = new LinkedHashMap<String, Integer>();
+
+    public Driver() {
+        this(Runtime.getRuntime().availableProcessors(), Allocators.Mode.AUTO);
+    }
+
+    /**
+     * @param threads number of methods optimized and allocated at once
+     * @param mode register allocator of each method
+     */
+    public Driver(int threads, Allocators.Mode mode) {
+        this(threads, mode, Codegen.CallingSequence.PUSH);
+    }
+
+    /**
+     * @param threads number of methods optimized and allocated at once
+     * @param mode register allocator of each method
+     * @param calls how arguments are passed
+     */
+    public Driver(int threads, Allocators.Mode mode,
+        Codegen.CallingSequence calls) {
+        this.threads = Math.max(threads, 1);
+        this.mode = mode;
+        this.calls = calls;
+    }
+
+    /**
+     * Compiles the methods.
+     *
+     * @param methods
+     * @return the allocation of each method, in the order of methods
+     * @throws InterruptedException
+     */
+    public ArrayList<Allocator> compile(Iterable<Method> methods)
+        throws InterruptedException {
+        // Selection, serially:
+        InstrBuffer buffer = new InstrBuffer();
+        ArrayList<Callable<Allocator>> tasks = new ArrayList<Callable<Allocator>>();
+        for (Method m : methods) {
+            Codegen codegen = new Codegen(m.frame, buffer, calls);
+            List<Instr> instrs = codegen.codegen(m.body);
+            instrs = reserve(m.frame, instrs, codegen.getOutgoingSize());
+            tasks.add(task(m.frame, instrs));
+        }
+
+        ArrayList<Allocator> result = new ArrayList<Allocator>();
+        if (threads == 1 || tasks.size() <= 1) {
+            for (Callable<Allocator> t : tasks) {
+                result.add(call(t));
+            }
+            return result;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.min(threads, tasks.size()));
+        try {
+            for (Future<Allocator> f : pool.invokeAll(tasks)) {
+                result.add(get(f));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Returns body with size bytes of stack reserved around it (body itself
+     * if size is 0).
+     */
+    private static List<Instr> reserve(Frame frame, List<Instr> body, int size) {
+        if (size == 0) {
+            return body;
+        }
+        Operand sp = Operand.reg(frame.SP());
+        List<Instr> last = body;
+        while (last.tail != null) {
+            last = last.tail;
+        }
+        last.tail = new List<Instr>(
+            new X86Instr(Opcode.ADD, sp, Operand.imm(size)), null);
+        return new List<Instr>(
+            new X86Instr(Opcode.SUB, sp, Operand.imm(size)), body);
+    }
+
+    private Callable<Allocator> task(final Frame frame, final List<Instr> selected) {
+        return new Callable<Allocator>() {
+            public Allocator call() {
+                // Conditional constant propagation runs to its own fixpoint
+                // and leaves the constant definitions dead. It returns a new
+                // list (null if nothing is left to execute, when the
+                // original does nothing either). Common subexpression
+                // elimination leaves the "mov t, a" of the expressions it
+                // replaces dead too, and copies to forward. Constant and
+                // copy propagation then alternate with dead code
+                // elimination until none of them changes anything:
+                List<Instr> instrs = new CondConstPropagation().optimize(selected);
+                if (instrs == null) {
+                    instrs = selected;
+                }
+                new CommonSubexpressionElimination(frame).optimize(instrs);
+                ConstPropagation constants = new ConstPropagation();
+                CopyPropagation copies = new CopyPropagation(frame);
+                DeadCodeElimination dce = new DeadCodeElimination(frame);
+                boolean changed;
+                do {
+                    changed = constants.optimize(instrs);
+                    changed |= copies.optimize(instrs);
+                    changed |= dce.optimize(instrs);
+                } while (changed);
+                new LoopInvariantCodeMotion(frame).optimize(instrs);
+
+                Peephole before = new Peephole();
+                before.optimize(instrs);
+                Allocator a = Allocators.allocate(frame, instrs, mode);
+                Peephole after = new Peephole(a);
+                after.optimize(a.getInstructions());
+                count(before.getHits());
+                count(after.getHits());
+                return a;
+            }
+        };
+    }
+
+    /**
+     * Peephole rule hits over the methods compiled so far, by rule name.
+     *
+     * @return
+     */
+    public synchronized Map<String, Integer> getPeepholeHits() {
+        return new LinkedHashMap<String, Integer>(hits);
+    }
+
+    private synchronized void count(Map<String, Integer> h) {
+        for (Map.Entry<String, Integer> e : h.entrySet()) {
+            Integer n = hits.get(e.getKey());
+            hits.put(e.getKey(), ((n == null) ? 0 : n) + e.getValue());
+        }
+    }
+
+    private static Allocator call(Callable<Allocator> t) {
+        try {
+            return t.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Allocator get(Future<Allocator> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
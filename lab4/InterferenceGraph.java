@@ -0,0 +1,187 @@
+package regalloc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import graph.Node;
+import optimization.Liveness;
+import temp.Temp;
+
+/**
+ * Interference graph of the temporaries of a method.
+ *     Nodes are the temporary numbers given by the liveness analysis. Edges
+ * are kept twice: in a triangular bit-matrix, for constant time "do u and v
+ * interfere?" queries, and in adjacency lists, for walking the neighbours
+ * of a node.
+ *     Register to register moves (assem.MOVE) are recorded too, since the
+ * allocator tries to give both ends of a move the same register.
+ */
+public class InterferenceGraph {
+
+    private Liveness live;
+    private int size;
+
+    // Lower triangle of the adjacency matrix, one bit per pair u > v:
+    private long[] matrix;
+
+    private int[][] adj;
+    private int[] degree;
+
+    // Moves "dst <- src", as temporary numbers:
+    private ArrayList<Instr> moves;
+    private int[] moveDst;
+    private int[] moveSrc;
+
+    public InterferenceGraph(AssemFlowGraph cfg, Liveness live) {
+        this.live = live;
+        size = live.getTempCount();
+
+        long pairs = (long)size * (size - 1) / 2;
+        matrix = new long[(int)((pairs + 63) / 64)];
+        adj = new int[size][];
+        degree = new int[size];
+
+        moves = new ArrayList<Instr>();
+        ArrayList<Integer> dsts = new ArrayList<Integer>();
+        ArrayList<Integer> srcs = new ArrayList<Integer>();
+
+        BitSet live_n = new BitSet(size);
+        for (Node n : cfg.nodes()) {
+            if (cfg.getDefined(n) == null) continue;
+
+            live_n.clear();
+            live_n.or(live.getOutBits(n));
+
+            // A move doesn't make its source and destination interfere:
+            Instr instr = cfg.getInstr(n);
+            if (instr instanceof assem.MOVE) {
+                int d = live.getTempIndex(cfg.getDefined(n).head);
+                int s = live.getTempIndex(cfg.getUsed(n).head);
+                live_n.clear(s);
+                if (d != s) {
+                    moves.add(instr);
+                    dsts.add(d);
+                    srcs.add(s);
+                }
+            }
+
+            // Every definition interferes with what is live after it, and
+            // with the other definitions of the same instruction:
+            for (Temp t : cfg.getDefined(n)) {
+                live_n.set(live.getTempIndex(t));
+            }
+            for (Temp t : cfg.getDefined(n)) {
+                int d = live.getTempIndex(t);
+                for (int l = live_n.nextSetBit(0); l >= 0;
+                    l = live_n.nextSetBit(l + 1)) {
+                    addEdge(d, l);
+                }
+            }
+        }
+
+        moveDst = new int[dsts.size()];
+        moveSrc = new int[srcs.size()];
+        for (int k = 0; k < moveDst.length; k++) {
+            moveDst[k] = dsts.get(k);
+            moveSrc[k] = srcs.get(k);
+        }
+    }
+
+    /**
+     * Number of nodes (temporaries).
+     */
+    public int size() {
+        return size;
+    }
+
+    public Temp getTemp(int u) {
+        return live.getTemp(u);
+    }
+
+    public int getIndex(Temp t) {
+        return live.getTempIndex(t);
+    }
+
+    public boolean interferes(int u, int v) {
+        if (u == v) {
+            return false;
+        }
+        long bit = position(u, v);
+        return (matrix[(int)(bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Adds the edge u - v. Returns false if it was already there.
+     *
+     * @param u
+     * @param v
+     * @return
+     */
+    public boolean addEdge(int u, int v) {
+        if (u == v) {
+            return false;
+        }
+        long bit = position(u, v);
+        int word = (int)(bit >>> 6);
+        if ((matrix[word] & (1L << bit)) != 0) {
+            return false;
+        }
+        matrix[word] |= 1L << bit;
+        append(u, v);
+        append(v, u);
+        return true;
+    }
+
+    /**
+     * Number of neighbours of u.
+     */
+    public int getDegree(int u) {
+        return degree[u];
+    }
+
+    /**
+     * Neighbours of u, in adjacent(u)[0..getDegree(u) - 1]. The array must
+     * not be modified.
+     */
+    public int[] adjacent(int u) {
+        return (adj[u] == null) ? new int[0] : adj[u];
+    }
+
+    public int getMoveCount() {
+        return moveDst.length;
+    }
+
+    public Instr getMove(int k) {
+        return moves.get(k);
+    }
+
+    public int getMoveDst(int k) {
+        return moveDst[k];
+    }
+
+    public int getMoveSrc(int k) {
+        return moveSrc[k];
+    }
+
+    private static long position(int u, int v) {
+        if (u < v) {
+            int t = u;
+            u = v;
+            v = t;
+        }
+        return (long)u * (u - 1) / 2 + v;
+    }
+
+    private void append(int u, int v) {
+        if (adj[u] == null) {
+            adj[u] = new int[4];
+        } else if (degree[u] == adj[u].length) {
+            int[] a = new int[2 * degree[u]];
+            System.arraycopy(adj[u], 0, a, 0, degree[u]);
+            adj[u] = a;
+        }
+        adj[u][degree[u]++] = v;
+    }
+}
@@ -0,0 +1,362 @@
+package regalloc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import frame.Access;
+import graph.Node;
+import optimization.Liveness;
+import temp.Temp;
+import util.List;
+import x86.Frame;
+
+/**
+ * Linear scan register allocation (Poletto and Sarkar, "Linear Scan
+ * Register Allocation", TOPLAS 1999).
+ *     Each temporary gets a single live interval: the instructions, in list
+ * order, from the first to the last one where it is live, used or defined.
+ * Intervals are visited by increasing start and take a free register when
+ * there is one; otherwise the interval that ends last is spilled. After
+ * liveness this is one pass over the intervals, where graph coloring has to
+ * build and color the whole interference graph, but lifetime holes are
+ * lost and nothing is coalesced beyond a move hint.
+ *     Machine registers that appear in the code (eax/edx around mul/div...)
+ * are kept as the exact set of instructions where they are busy, and an
+ * interval can't get a register that is busy anywhere inside it.
+ */
+public class LinearScan implements Allocator {
+
+    private Frame frame;
+    private List<Instr> instrs;
+
+    // Machine registers; a color is an index in this array:
+    private Temp[] registers;
+    private boolean[] allocatable;
+    private Map<Temp, Integer> registerIndex;
+
+    // Final assignment of temporaries to machine registers:
+    private Map<Temp, Temp> assignment;
+
+    // Temporaries introduced by spilling (never spilled again):
+    private Set<Temp> spillTemps;
+
+    private int spillCount;
+    private int coalescedCount;
+
+    // State of the current round, indexed by temporary number:
+    private Liveness live;
+    private int[] start;
+    private int[] end;
+    private int[] precolor;
+    private int[] color;
+
+    // Source of the move that starts the interval, or -1:
+    private int[] hint;
+
+    // Instructions where each machine register is live, used or defined:
+    private BitSet[] fixed;
+
+    public LinearScan(Frame frame, List<Instr> instrs) {
+        this.frame = frame;
+        this.instrs = instrs;
+
+        ArrayList<Temp> regs = new ArrayList<Temp>();
+        for (Temp r : frame.registers()) {
+            regs.add(r);
+        }
+        registers = regs.toArray(new Temp[regs.size()]);
+        allocatable = new boolean[registers.length];
+        registerIndex = new HashMap<Temp, Integer>();
+        for (int c = 0; c < registers.length; c++) {
+            allocatable[c] = !registers[c].equals(frame.SP()) &&
+                !registers[c].equals(frame.FP());
+            registerIndex.put(registers[c], c);
+        }
+
+        spillTemps = new HashSet<Temp>();
+        while (true) {
+            AssemFlowGraph cfg = new AssemFlowGraph(this.instrs);
+            live = new Liveness(cfg);
+            buildIntervals(cfg);
+
+            ArrayList<Integer> spilled = scan();
+            if (spilled.isEmpty()) {
+                break;
+            }
+
+            Map<Temp, Access> slots = new HashMap<Temp, Access>();
+            for (int n : spilled) {
+                slots.put(live.getTemp(n), frame.allocLocal(true));
+                spillCount++;
+            }
+            this.instrs = SpillCode.rewrite(frame, this.instrs, slots,
+                spillTemps);
+        }
+
+        assignment = new HashMap<Temp, Temp>();
+        for (int n = 0; n < live.getTempCount(); n++) {
+            int c = (precolor[n] >= 0) ? precolor[n] : color[n];
+            assignment.put(live.getTemp(n), registers[c]);
+        }
+
+        List<Instr> l = SpillCode.removeMoves(this.instrs, assignment);
+        coalescedCount = this.instrs.size() - l.size();
+        this.instrs = l;
+    }
+
+    public List<Instr> getInstructions() {
+        return instrs;
+    }
+
+    public Temp getRegister(Temp t) {
+        return assignment.get(t);
+    }
+
+    public String tempMap(Temp t) {
+        Temp r = assignment.get(t);
+        return frame.tempMap((r == null) ? t : r);
+    }
+
+    public int getSpillCount() {
+        return spillCount;
+    }
+
+    public int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    private void buildIntervals(AssemFlowGraph cfg) {
+        int size = live.getTempCount();
+        start = new int[size];
+        end = new int[size];
+        precolor = new int[size];
+        hint = new int[size];
+        Arrays.fill(start, -1);
+        Arrays.fill(hint, -1);
+        for (int n = 0; n < size; n++) {
+            Integer c = registerIndex.get(live.getTemp(n));
+            precolor[n] = (c == null) ? -1 : c;
+        }
+
+        fixed = new BitSet[registers.length];
+        int[] number = new int[registers.length];
+        for (int c = 0; c < registers.length; c++) {
+            fixed[c] = new BitSet();
+            number[c] = live.getTempIndex(registers[c]);
+        }
+
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for (Node node : cfg.nodes()) {
+            nodes.add(node);
+        }
+
+        // A temporary starts where it is first busy, going forward, and ends
+        // where it is first busy going backward; only the newly seen ones are
+        // looked at, so this costs words of BitSet per instruction rather
+        // than live temporaries:
+        BitSet busy = new BitSet(size);
+        BitSet seen = new BitSet(size);
+        BitSet fresh = new BitSet(size);
+        for (int i = 0; i < nodes.size(); i++) {
+            busy(cfg, nodes.get(i), busy);
+            fresh.clear();
+            fresh.or(busy);
+            fresh.andNot(seen);
+            seen.or(fresh);
+            for (int n = fresh.nextSetBit(0); n >= 0; n = fresh.nextSetBit(n + 1)) {
+                start[n] = i;
+            }
+
+            for (int c = 0; c < registers.length; c++) {
+                if (number[c] >= 0 && busy.get(number[c])) {
+                    fixed[c].set(i);
+                }
+            }
+
+            // An interval that starts with "d <- s" would like the register
+            // of s, if s dies there:
+            if (cfg.getInstr(nodes.get(i)) instanceof assem.MOVE) {
+                int d = live.getTempIndex(cfg.getDefined(nodes.get(i)).head);
+                int s = live.getTempIndex(cfg.getUsed(nodes.get(i)).head);
+                if (start[d] == i) {
+                    hint[d] = s;
+                }
+            }
+        }
+
+        seen.clear();
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            busy(cfg, nodes.get(i), busy);
+            fresh.clear();
+            fresh.or(busy);
+            fresh.andNot(seen);
+            seen.or(fresh);
+            for (int n = fresh.nextSetBit(0); n >= 0; n = fresh.nextSetBit(n + 1)) {
+                end[n] = i;
+            }
+        }
+    }
+
+    /**
+     * Temporaries live, used or defined at node.
+     */
+    private void busy(AssemFlowGraph cfg, Node node, BitSet busy) {
+        busy.clear();
+        busy.or(live.getInBits(node));
+        busy.or(live.getOutBits(node));
+        if (cfg.getUsed(node) != null) {
+            for (Temp t : cfg.getUsed(node)) {
+                busy.set(live.getTempIndex(t));
+            }
+        }
+        if (cfg.getDefined(node) != null) {
+            for (Temp t : cfg.getDefined(node)) {
+                busy.set(live.getTempIndex(t));
+            }
+        }
+    }
+
+    /**
+     * Assigns registers to the intervals, returns the temporaries that must
+     * be spilled.
+     */
+    private ArrayList<Integer> scan() {
+        int size = live.getTempCount();
+        color = new int[size];
+        Arrays.fill(color, -1);
+
+        // Active intervals, by increasing end:
+        TreeSet<Integer> active = new TreeSet<Integer>(new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (end[a] != end[b]) {
+                    return (end[a] < end[b]) ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        boolean[] free = allocatable.clone();
+        ArrayList<Integer> spilled = new ArrayList<Integer>();
+
+        for (int n : byStart()) {
+            // Intervals that ended before n starts give their register back:
+            while (!active.isEmpty() && end[active.first()] < start[n]) {
+                free[color[active.pollFirst()]] = true;
+            }
+
+            int c = hinted(n, active, free);
+            for (int r = 0; c < 0 && r < registers.length; r++) {
+                if (free[r] && fits(r, start[n], end[n])) {
+                    c = r;
+                }
+            }
+            if (c >= 0) {
+                color[n] = c;
+                free[c] = false;
+                active.add(n);
+                continue;
+            }
+
+            // No register left: take the one of the active interval that
+            // ends last, if it ends after n (spill temporaries can't be
+            // spilled, so they take one anyway):
+            boolean mustColor = spillTemps.contains(live.getTemp(n));
+            int victim = -1;
+            for (int a : active.descendingSet()) {
+                if (end[a] <= end[n] && !mustColor) {
+                    break;
+                }
+                if (!spillTemps.contains(live.getTemp(a)) &&
+                    fits(color[a], start[n], end[n])) {
+                    victim = a;
+                    break;
+                }
+            }
+
+            if (victim >= 0) {
+                active.remove(victim);
+                color[n] = color[victim];
+                color[victim] = -1;
+                spilled.add(victim);
+                active.add(n);
+            } else if (!mustColor) {
+                spilled.add(n);
+            } else {
+                throw new IllegalStateException(
+                    "No register left for " + live.getTemp(n));
+            }
+        }
+        return spilled;
+    }
+
+    /**
+     * Register of the source of the move that starts n, if that source
+     * dies at the move and its register is free for the rest of n (the
+     * move then goes away).
+     */
+    private int hinted(int n, TreeSet<Integer> active, boolean[] free) {
+        int h = hint[n];
+        if (h < 0 || end[h] != start[n]) {
+            return -1;
+        }
+
+        if (precolor[h] >= 0) {
+            int c = precolor[h];
+            if (allocatable[c] && free[c] && fits(c, start[n] + 1, end[n])) {
+                return c;
+            }
+        } else if (color[h] >= 0 && fits(color[h], start[n] + 1, end[n])) {
+            active.remove(h);
+            return color[h];
+        }
+        return -1;
+    }
+
+    /**
+     * True if the register c is not busy anywhere in [from, to].
+     */
+    private boolean fits(int c, int from, int to) {
+        int i = fixed[c].nextSetBit(from);
+        return i < 0 || i > to;
+    }
+
+    /**
+     * Non-precolored temporaries by increasing interval start (a counting
+     * sort, the starts are instruction numbers).
+     */
+    private int[] byStart() {
+        int size = live.getTempCount();
+        int last = 0;
+        for (int n = 0; n < size; n++) {
+            last = Math.max(last, start[n]);
+        }
+
+        int[] count = new int[last + 2];
+        int k = 0;
+        for (int n = 0; n < size; n++) {
+            if (precolor[n] < 0) {
+                count[start[n] + 1]++;
+                k++;
+            }
+        }
+        for (int i = 1; i < count.length; i++) {
+            count[i] += count[i - 1];
+        }
+
+        int[] order = new int[k];
+        for (int n = 0; n < size; n++) {
+            if (precolor[n] < 0) {
+                order[count[start[n]]++] = n;
+            }
+        }
+        return order;
+    }
+}
@@ -0,0 +1,510 @@
+package regalloc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import assem.Instr;
+import flow_graph.AssemFlowGraph;
+import frame.Access;
+import graph.Node;
+import optimization.Liveness;
+import temp.Temp;
+import util.List;
+import x86.Frame;
+
+/**
+ * Graph coloring register allocator with iterated register coalescing
+ * (George and Appel, "Iterated Register Coalescing", TOPLAS 1996).
+ *     The machine registers that appear in the code are precolored nodes;
+ * every other temporary gets one of the registers that are neither the
+ * stack nor the frame pointer. Temporaries that can't be colored are
+ * spilled to the frame and the allocation starts over on the rewritten
+ * code. Moves whose ends end up in the same register are deleted.
+ */
+public class RegAlloc implements Allocator {
+
+    // Node states (which set each node is in):
+    private static final int INITIAL = 0;
+    private static final int PRECOLORED = 1;
+    private static final int SIMPLIFY = 2;
+    private static final int FREEZE = 3;
+    private static final int SPILL = 4;
+    private static final int SPILLED = 5;
+    private static final int COALESCED = 6;
+    private static final int COLORED = 7;
+    private static final int SELECT = 8;
+
+    // Move states:
+    private static final int WORKLIST = 0;
+    private static final int ACTIVE = 1;
+    private static final int MOVE_COALESCED = 2;
+    private static final int CONSTRAINED = 3;
+    private static final int FROZEN = 4;
+
+    private Frame frame;
+    private List<Instr> instrs;
+
+    // Machine registers; a color is an index in this array:
+    private Temp[] registers;
+    private boolean[] allocatable;
+    private int K;
+
+    // Final assignment of temporaries to machine registers:
+    private Map<Temp, Temp> assignment;
+
+    // Temporaries introduced by spilling (never spilled again):
+    private Set<Temp> spillTemps;
+
+    private int spillCount;
+    private int coalescedCount;
+
+    // State of the current round:
+    private InterferenceGraph graph;
+    private int[] state;
+    private int[] degree;
+    private int[] alias;
+    private int[] color;
+    private double[] cost;
+
+    private ArrayDeque<Integer> simplifyWorklist;
+    private LinkedHashSet<Integer> freezeWorklist;
+    private LinkedHashSet<Integer> spillWorklist;
+    private ArrayList<Integer> spilledNodes;
+    private ArrayDeque<Integer> selectStack;
+
+    private int[] moveState;
+    private ArrayList<ArrayList<Integer>> moveList;
+    private ArrayDeque<Integer> worklistMoves;
+
+    public RegAlloc(Frame frame, List<Instr> instrs) {
+        this.frame = frame;
+        this.instrs = instrs;
+
+        ArrayList<Temp> regs = new ArrayList<Temp>();
+        for (Temp r : frame.registers()) {
+            regs.add(r);
+        }
+        registers = regs.toArray(new Temp[regs.size()]);
+        allocatable = new boolean[registers.length];
+        for (int c = 0; c < registers.length; c++) {
+            allocatable[c] = !registers[c].equals(frame.SP()) &&
+                !registers[c].equals(frame.FP());
+            if (allocatable[c]) {
+                K++;
+            }
+        }
+
+        spillTemps = new HashSet<Temp>();
+        while (true) {
+            AssemFlowGraph cfg = new AssemFlowGraph(this.instrs);
+            graph = new InterferenceGraph(cfg, new Liveness(cfg));
+            build(cfg);
+            makeWorklist();
+
+            while (!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty() ||
+                !freezeWorklist.isEmpty() || !spillWorklist.isEmpty()) {
+                if (!simplifyWorklist.isEmpty()) {
+                    simplify();
+                } else if (!worklistMoves.isEmpty()) {
+                    coalesce();
+                } else if (!freezeWorklist.isEmpty()) {
+                    freeze();
+                } else {
+                    selectSpill();
+                }
+            }
+            assignColors();
+
+            if (spilledNodes.isEmpty()) {
+                break;
+            }
+            rewriteProgram();
+        }
+
+        assignment = new HashMap<Temp, Temp>();
+        for (int n = 0; n < graph.size(); n++) {
+            assignment.put(graph.getTemp(n), registers[color[n]]);
+        }
+        removeCoalescedMoves();
+    }
+
+    /**
+     * The instructions after allocation (with spill code, and without the
+     * moves that became "r <- r").
+     */
+    public List<Instr> getInstructions() {
+        return instrs;
+    }
+
+    /**
+     * Returns the machine register assigned to t.
+     */
+    public Temp getRegister(Temp t) {
+        return assignment.get(t);
+    }
+
+    public String tempMap(Temp t) {
+        Temp r = assignment.get(t);
+        return frame.tempMap((r == null) ? t : r);
+    }
+
+    /**
+     * Number of temporaries spilled to the frame.
+     */
+    public int getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * Number of moves removed by coalescing.
+     */
+    public int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    private void build(AssemFlowGraph cfg) {
+        int size = graph.size();
+        state = new int[size];
+        degree = new int[size];
+        alias = new int[size];
+        color = new int[size];
+        cost = new double[size];
+
+        for (int n = 0; n < size; n++) {
+            alias[n] = n;
+            color[n] = -1;
+            for (int c = 0; c < registers.length; c++) {
+                if (registers[c].equals(graph.getTemp(n))) {
+                    state[n] = PRECOLORED;
+                    color[n] = c;
+                }
+            }
+            // Precolored nodes have "infinite" degree:
+            degree[n] = (state[n] == PRECOLORED) ? Integer.MAX_VALUE / 2
+                                                 : graph.getDegree(n);
+        }
+
+        // Spill cost: number of uses and defs (a spilled temporary needs a
+        // memory access for each):
+        for (Node i : cfg.nodes()) {
+            if (cfg.getUsed(i) != null) {
+                for (Temp t : cfg.getUsed(i)) {
+                    cost[graph.getIndex(t)]++;
+                }
+            }
+            if (cfg.getDefined(i) != null) {
+                for (Temp t : cfg.getDefined(i)) {
+                    cost[graph.getIndex(t)]++;
+                }
+            }
+        }
+        for (int n = 0; n < size; n++) {
+            if (spillTemps.contains(graph.getTemp(n))) {
+                cost[n] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        moveState = new int[graph.getMoveCount()];
+        moveList = new ArrayList<ArrayList<Integer>>();
+        for (int n = 0; n < size; n++) {
+            moveList.add(new ArrayList<Integer>());
+        }
+        worklistMoves = new ArrayDeque<Integer>();
+        for (int m = 0; m < graph.getMoveCount(); m++) {
+            moveState[m] = WORKLIST;
+            moveList.get(graph.getMoveDst(m)).add(m);
+            moveList.get(graph.getMoveSrc(m)).add(m);
+            worklistMoves.add(m);
+        }
+    }
+
+    private void makeWorklist() {
+        simplifyWorklist = new ArrayDeque<Integer>();
+        freezeWorklist = new LinkedHashSet<Integer>();
+        spillWorklist = new LinkedHashSet<Integer>();
+        spilledNodes = new ArrayList<Integer>();
+        selectStack = new ArrayDeque<Integer>();
+
+        for (int n = 0; n < graph.size(); n++) {
+            if (state[n] == PRECOLORED) continue;
+            if (degree[n] >= K) {
+                state[n] = SPILL;
+                spillWorklist.add(n);
+            } else if (moveRelated(n)) {
+                state[n] = FREEZE;
+                freezeWorklist.add(n);
+            } else {
+                state[n] = SIMPLIFY;
+                simplifyWorklist.add(n);
+            }
+        }
+    }
+
+    /**
+     * Neighbours of n still in the graph.
+     */
+    private ArrayList<Integer> adjacent(int n) {
+        ArrayList<Integer> a = new ArrayList<Integer>();
+        int[] adj = graph.adjacent(n);
+        for (int k = 0; k < graph.getDegree(n); k++) {
+            if (state[adj[k]] != SELECT && state[adj[k]] != COALESCED) {
+                a.add(adj[k]);
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Moves of n that may still be coalesced.
+     */
+    private ArrayList<Integer> nodeMoves(int n) {
+        ArrayList<Integer> a = new ArrayList<Integer>();
+        for (int m : moveList.get(n)) {
+            if (moveState[m] == ACTIVE || moveState[m] == WORKLIST) {
+                a.add(m);
+            }
+        }
+        return a;
+    }
+
+    private boolean moveRelated(int n) {
+        for (int m : moveList.get(n)) {
+            if (moveState[m] == ACTIVE || moveState[m] == WORKLIST) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void simplify() {
+        int n = simplifyWorklist.poll();
+        if (state[n] != SIMPLIFY) return;
+
+        state[n] = SELECT;
+        selectStack.push(n);
+        for (int m : adjacent(n)) {
+            decrementDegree(m);
+        }
+    }
+
+    private void decrementDegree(int m) {
+        if (state[m] == PRECOLORED) return;
+
+        int d = degree[m]--;
+        if (d == K && state[m] == SPILL) {
+            enableMoves(m);
+            for (int a : adjacent(m)) {
+                enableMoves(a);
+            }
+            spillWorklist.remove(m);
+            if (moveRelated(m)) {
+                state[m] = FREEZE;
+                freezeWorklist.add(m);
+            } else {
+                state[m] = SIMPLIFY;
+                simplifyWorklist.add(m);
+            }
+        }
+    }
+
+    private void enableMoves(int n) {
+        for (int m : nodeMoves(n)) {
+            if (moveState[m] == ACTIVE) {
+                moveState[m] = WORKLIST;
+                worklistMoves.add(m);
+            }
+        }
+    }
+
+    private void coalesce() {
+        int m = worklistMoves.poll();
+        if (moveState[m] != WORKLIST) return;
+
+        int x = getAlias(graph.getMoveDst(m));
+        int y = getAlias(graph.getMoveSrc(m));
+        int u = x;
+        int v = y;
+        if (state[y] == PRECOLORED) {
+            u = y;
+            v = x;
+        }
+
+        if (u == v) {
+            moveState[m] = MOVE_COALESCED;
+            addWorkList(u);
+        } else if (state[v] == PRECOLORED || graph.interferes(u, v)) {
+            moveState[m] = CONSTRAINED;
+            addWorkList(u);
+            addWorkList(v);
+        } else if (canCoalesce(u, v)) {
+            moveState[m] = MOVE_COALESCED;
+            combine(u, v);
+            addWorkList(u);
+        } else {
+            moveState[m] = ACTIVE;
+        }
+    }
+
+    /**
+     * George's test against a precolored u, Briggs' conservative test
+     * otherwise.
+     */
+    private boolean canCoalesce(int u, int v) {
+        if (state[u] == PRECOLORED) {
+            for (int t : adjacent(v)) {
+                if (!(degree[t] < K || state[t] == PRECOLORED ||
+                      graph.interferes(t, u))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Set<Integer> nodes = new HashSet<Integer>(adjacent(u));
+        nodes.addAll(adjacent(v));
+        int k = 0;
+        for (int n : nodes) {
+            if (degree[n] >= K) {
+                k++;
+            }
+        }
+        return k < K;
+    }
+
+    private void addWorkList(int u) {
+        if (state[u] == FREEZE && !moveRelated(u) && degree[u] < K) {
+            freezeWorklist.remove(u);
+            state[u] = SIMPLIFY;
+            simplifyWorklist.add(u);
+        }
+    }
+
+    private int getAlias(int n) {
+        while (state[n] == COALESCED) {
+            n = alias[n];
+        }
+        return n;
+    }
+
+    private void combine(int u, int v) {
+        if (!freezeWorklist.remove(v)) {
+            spillWorklist.remove(v);
+        }
+        state[v] = COALESCED;
+        alias[v] = u;
+        moveList.get(u).addAll(moveList.get(v));
+        enableMoves(v);
+
+        for (int t : adjacent(v)) {
+            if (graph.addEdge(t, u)) {
+                if (state[u] != PRECOLORED) degree[u]++;
+                if (state[t] != PRECOLORED) degree[t]++;
+            }
+            decrementDegree(t);
+        }
+
+        if (degree[u] >= K && state[u] == FREEZE) {
+            freezeWorklist.remove(u);
+            state[u] = SPILL;
+            spillWorklist.add(u);
+        }
+    }
+
+    private void freeze() {
+        int u = freezeWorklist.iterator().next();
+        freezeWorklist.remove(u);
+        state[u] = SIMPLIFY;
+        simplifyWorklist.add(u);
+        freezeMoves(u);
+    }
+
+    private void freezeMoves(int u) {
+        for (int m : nodeMoves(u)) {
+            int x = graph.getMoveDst(m);
+            int y = graph.getMoveSrc(m);
+            int v = (getAlias(y) == getAlias(u)) ? getAlias(x) : getAlias(y);
+
+            moveState[m] = FROZEN;
+            if (state[v] == FREEZE && !moveRelated(v) && degree[v] < K) {
+                freezeWorklist.remove(v);
+                state[v] = SIMPLIFY;
+                simplifyWorklist.add(v);
+            }
+        }
+    }
+
+    private void selectSpill() {
+        // Cheapest node per interference removed:
+        int m = -1;
+        for (int n : spillWorklist) {
+            if (m < 0 || cost[n] / degree[n] < cost[m] / degree[m]) {
+                m = n;
+            }
+        }
+        spillWorklist.remove(m);
+        state[m] = SIMPLIFY;
+        simplifyWorklist.add(m);
+        freezeMoves(m);
+    }
+
+    private void assignColors() {
+        while (!selectStack.isEmpty()) {
+            int n = selectStack.pop();
+
+            boolean[] ok = allocatable.clone();
+            int[] adj = graph.adjacent(n);
+            for (int k = 0; k < graph.getDegree(n); k++) {
+                int w = getAlias(adj[k]);
+                if (state[w] == COLORED || state[w] == PRECOLORED) {
+                    ok[color[w]] = false;
+                }
+            }
+
+            int c = 0;
+            while (c < ok.length && !ok[c]) {
+                c++;
+            }
+            if (c == ok.length) {
+                state[n] = SPILLED;
+                spilledNodes.add(n);
+            } else {
+                state[n] = COLORED;
+                color[n] = c;
+            }
+        }
+
+        for (int n = 0; n < graph.size(); n++) {
+            if (state[n] == COALESCED) {
+                color[n] = color[getAlias(n)];
+            }
+        }
+    }
+
+    /**
+     * Gives each spilled temporary a frame slot, loads it into a new
+     * temporary before each use and stores it after each definition.
+     */
+    private void rewriteProgram() {
+        Map<Temp, Access> slots = new HashMap<Temp, Access>();
+        for (int n : spilledNodes) {
+            slots.put(graph.getTemp(n), frame.allocLocal(true));
+            spillCount++;
+        }
+
+        instrs = SpillCode.rewrite(frame, instrs, slots, spillTemps);
+    }
+
+    /**
+     * Deletes the moves between temporaries that got the same register.
+     */
+    private void removeCoalescedMoves() {
+        List<Instr> l = SpillCode.removeMoves(instrs, assignment);
+        coalescedCount += instrs.size() - l.size();
+        instrs = l;
+    }
+}
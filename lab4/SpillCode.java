@@ -0,0 +1,131 @@
+package regalloc;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import assem.Instr;
+import frame.Access;
+import temp.Temp;
+import tree.Exp;
+import tree.MOVE;
+import tree.Stm;
+import tree.TEMP;
+import util.List;
+import x86.Codegen;
+import x86.Frame;
+import x86.InstrBuffer;
+import x86.X86Instr;
+
+/**
+ * Code rewriting shared by the register allocators: spill loads/stores and
+ * the removal of moves made useless by the assignment.
+ */
+final class SpillCode {
+
+    private SpillCode() {
+    }
+
+    /**
+     * Gives each spilled temporary its frame slot: a new temporary is loaded
+     * from the slot before each use and stored to it after each definition.
+     * The new temporaries are added to spillTemps. Synchronized: Temp and
+     * Label numbers come from unsynchronized counters, and the allocators
+     * may run on several methods at once (see Driver).
+     *
+     * @param frame
+     * @param instrs
+     * @param slots slot of each spilled temporary
+     * @param spillTemps
+     * @return the rewritten instructions
+     */
+    static synchronized List<Instr> rewrite(Frame frame, List<Instr> instrs,
+        Map<Temp, Access> slots, Set<Temp> spillTemps) {
+        InstrBuffer result = new InstrBuffer();
+        InstrBuffer after = new InstrBuffer();
+        Codegen codegen = new Codegen(frame);
+        for (Instr instr : instrs) {
+            after.reset();
+            for (Temp v : temps(instr)) {
+                Access slot = slots.get(v);
+                if (slot == null) continue;
+
+                Temp t = new Temp();
+                spillTemps.add(t);
+                boolean used = contains(instr.use(), v);
+                boolean defined = contains(instr.def(), v);
+                instr = replace(instr, v, t);
+
+                Exp mem = slot.exp(new TEMP(frame.FP()));
+                if (used) {
+                    result.addAll(select(codegen, new MOVE(new TEMP(t), mem)));
+                }
+                if (defined) {
+                    after.addAll(select(codegen, new MOVE(mem, new TEMP(t))));
+                }
+            }
+            result.add(instr);
+            result.addAll(after.toList());
+        }
+        return result.toList();
+    }
+
+    /**
+     * Deletes the moves whose ends got the same register.
+     *
+     * @param instrs
+     * @param assignment register of each temporary
+     * @return
+     */
+    static List<Instr> removeMoves(List<Instr> instrs,
+        Map<Temp, Temp> assignment) {
+        InstrBuffer result = new InstrBuffer();
+        for (Instr instr : instrs) {
+            if (instr instanceof assem.MOVE &&
+                assignment.get(instr.def().head) ==
+                assignment.get(instr.use().head)) {
+                continue;
+            }
+            result.add(instr);
+        }
+        return result.toList();
+    }
+
+    /**
+     * Selects the instructions of a spill load or store.
+     */
+    private static List<Instr> select(Codegen codegen, Stm s) {
+        return codegen.codegen(new List<Stm>(s, null));
+    }
+
+    private static Set<Temp> temps(Instr instr) {
+        Set<Temp> s = new LinkedHashSet<Temp>();
+        if (instr.use() != null) {
+            for (Temp t : instr.use()) s.add(t);
+        }
+        if (instr.def() != null) {
+            for (Temp t : instr.def()) s.add(t);
+        }
+        return s;
+    }
+
+    private static boolean contains(List<Temp> l, Temp t) {
+        return l != null && l.hasElement(t);
+    }
+
+    private static Instr replace(Instr instr, Temp from, Temp to) {
+        if (instr instanceof assem.MOVE) {
+            Temp d = instr.def().head;
+            Temp s = instr.use().head;
+            return new assem.MOVE(
+                d.equals(from) ? to : d,
+                s.equals(from) ? to : s
+            );
+        }
+        if (instr instanceof X86Instr) {
+            ((X86Instr)instr).replaceTemp(from, to);
+            return instr;
+        }
+        throw new IllegalStateException("Can't spill in " + instr.getAssembly());
+    }
+}